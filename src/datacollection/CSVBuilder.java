@@ -1,48 +1,52 @@
 package datacollection;
 
 /**
+ * Fluent csv lines on top of a {@link CSVWriter}, either kept in memory
+ * (see {@link #toCSV()}) or streamed to the writer of a file.
+ *
  * @author Benjamin Albert
  */
 public class CSVBuilder {
-    private StringBuilder stringBuilder;
-    private boolean firstColumn;
-    
+    private final CSVWriter csvWriter;
+
     public CSVBuilder(){
-        stringBuilder = new StringBuilder();
-        firstColumn = true;
+        this(new CSVWriter());
+    }
+
+    /**
+     * @param csvWriter writer the lines are appended to
+     */
+    public CSVBuilder(CSVWriter csvWriter){
+        this.csvWriter = csvWriter;
     }
-    
+
     public void conditionalAppendComma(){
-        if (!firstColumn){
-            stringBuilder.append(",");
-        }
-        firstColumn = false;
+        csvWriter.conditionalAppendComma();
     }
-    
+
     public CSVBuilder append(CharSequence charSequence){
-        conditionalAppendComma();
-        stringBuilder.append(charSequence);
+        csvWriter.append(charSequence);
         return this;
     }
-    
+
     public CSVBuilder append(int i){
-        conditionalAppendComma();
-        stringBuilder.append(i);
+        csvWriter.append(i);
         return this;
     }
-    
+
     public CSVBuilder append(double d){
-        conditionalAppendComma();
-        stringBuilder.append(d);
+        csvWriter.append(d);
         return this;
     }
-    
+
     public void newline(){
-        stringBuilder.append("\n");
-        firstColumn = true;
+        csvWriter.newline();
     }
-    
+
+    /**
+     * @return the lines appended and not yet flushed to a file
+     */
     public String toCSV(){
-        return stringBuilder.toString();
+        return csvWriter.toString();
     }
 }
\ No newline at end of file
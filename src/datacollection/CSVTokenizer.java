@@ -0,0 +1,279 @@
+package datacollection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reusable comma tokenizer over raw bytes.
+ *
+ * A line is scanned once and only the start and end offset of every field are
+ * recorded. Numbers and enumerations are then parsed straight from the bytes so
+ * that no String is created unless one is explicitly requested.
+ *
+ * @author Benjamin Albert
+ */
+public class CSVTokenizer {
+
+    private static final byte COMMA = ',';
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /* 15 decimal digits always fit in the 53 bit mantissa of a double */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final Charset charset;
+    private ByteBuffer buffer;
+    private int[] starts;
+    private int[] ends;
+    private int fields;
+
+    public CSVTokenizer() {
+        this(Charset.defaultCharset());
+    }
+
+    public CSVTokenizer(Charset charset) {
+        this.charset = charset;
+        this.starts = new int[16];
+        this.ends = new int[16];
+    }
+
+    /**
+     * Split buffer[start, end) at every comma. Like {@link String#split(String)},
+     * trailing empty fields are not counted.
+     *
+     * @return number of fields
+     */
+    public int tokenize(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        fields = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buffer.get(i) == COMMA) {
+                if (fields == starts.length) {
+                    grow();
+                }
+                starts[fields] = fieldStart;
+                ends[fields] = i;
+                fields++;
+                fieldStart = i + 1;
+            }
+        }
+        while (fields > 1 && starts[fields - 1] == ends[fields - 1]) {
+            fields--;
+        }
+        return fields;
+    }
+
+    private void grow() {
+        int[] newStarts = new int[starts.length * 2];
+        int[] newEnds = new int[ends.length * 2];
+        System.arraycopy(starts, 0, newStarts, 0, fields);
+        System.arraycopy(ends, 0, newEnds, 0, fields);
+        starts = newStarts;
+        ends = newEnds;
+    }
+
+    /**
+     * @return the buffer of the last tokenized line
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int fields() {
+        return fields;
+    }
+
+    public int start(int field) {
+        checkField(field);
+        return starts[field];
+    }
+
+    public int end(int field) {
+        checkField(field);
+        return ends[field];
+    }
+
+    public boolean isEmpty(int field) {
+        return start(field) == end(field);
+    }
+
+    public String string(int field) {
+        return string(start(field), end(field));
+    }
+
+    public String string(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * @return true if the field holds exactly the given bytes
+     */
+    public boolean equals(int field, byte[] bytes) {
+        return equals(start(field), end(field), bytes);
+    }
+
+    public boolean equals(int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the candidate equal to the field or -1 if none match
+     */
+    public int match(int field, byte[][] candidates) {
+        for (int i = 0; i < candidates.length; i++) {
+            if (equals(field, candidates[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return offset of the first occurrence of b in [start, end) or -1
+     */
+    public int indexOf(byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if bytes occurs anywhere in [start, end)
+     */
+    public boolean contains(int start, int end, byte[] bytes) {
+        for (int i = start; i + bytes.length <= end; i++) {
+            if (equals(i, i + bytes.length, bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int parseInt(int field) {
+        long value = parseLong(field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + string(field) + "\"");
+        }
+        return (int) value;
+    }
+
+    public long parseLong(int field) {
+        return parseLong(start(field), end(field));
+    }
+
+    public long parseLong(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(string(start, end));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + string(start, end) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public double parseDouble(int field) {
+        return parseDouble(start(field), end(field));
+    }
+
+    /**
+     * Parses plain decimals such as -76.595269 without creating a String. The
+     * mantissa and the power of ten are both exact doubles, so the single
+     * division rounds exactly like {@link Double#parseDouble(String)}. Anything
+     * else (exponents, too many digits, NaN, etc) falls back to
+     * {@link Double#parseDouble(String)}.
+     *
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    public double parseDouble(int start, int end) {
+        int from = start;
+        int to = end;
+        while (from < to && buffer.get(from) <= ' ') {
+            from++;
+        }
+        while (to > from && buffer.get(to - 1) <= ' ') {
+            to--;
+        }
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (point) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i != to || digits == 0 || digits > MAX_EXACT_DIGITS || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(string(start, Math.max(start, end)));
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fields) {
+            throw new ArrayIndexOutOfBoundsException(field);
+        }
+    }
+
+    /**
+     * @return offset of the next '\n' at or after from, or limit if none
+     */
+    public static int lineEnd(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * @return end of the line content with a trailing '\r' removed
+     */
+    public static int trimCarriageReturn(ByteBuffer buffer, int lineStart, int lineEnd) {
+        return lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+    }
+}
@@ -0,0 +1,286 @@
+package datacollection;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes csv lines straight into a reusable byte buffer that is flushed to a
+ * channel whenever it fills up, so that no String is made per value, line or
+ * file and a file of any size only needs the buffer in memory. Without a
+ * channel the buffer grows instead and holds the whole csv, see
+ * {@link CSVBuilder}.
+ *
+ * Numbers are formatted into the buffer without garbage. A double is written
+ * as the shortest decimal that reads back as the same double, in the format of
+ * Double.toString (e.g. 56.0, -76.6123); doubles that Double.toString writes
+ * in scientific notation, that need more than MAX_FAST_DECIMALS decimals and
+ * NaN or infinite ones are left to Double.toString.
+ *
+ * Values are written as they are given, without quoting. Appending to a
+ * channel throws an UncheckedIOException if the channel cannot be written.
+ *
+ * @author Benjamin Albert
+ */
+public class CSVWriter implements Closeable, Flushable {
+
+    public static final int DEFAULT_BUFFER_BYTES = 1 << 16;
+
+    private static final int MAX_FAST_DECIMALS = 15;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FAST_DECIMALS + 1];
+    /* 2^53, integers below it are exact doubles */
+    private static final double EXACT_INTEGERS = 9007199254740992.0;
+    /* Double.toString uses plain decimals in [10^-3, 10^7) */
+    private static final double MIN_PLAIN = 1e-3;
+    private static final double MAX_PLAIN = 1e7;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private byte[] buffer;
+    private int length;
+    private boolean firstColumn;
+
+    /**
+     * Writer that keeps the csv in memory.
+     */
+    public CSVWriter() {
+        this(null, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param channel channel the csv is written to, closed with the writer
+     */
+    public CSVWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_BYTES);
+    }
+
+    public CSVWriter(WritableByteChannel channel, int bufferBytes) {
+        this.channel = channel;
+        this.buffer = new byte[bufferBytes];
+        this.firstColumn = true;
+    }
+
+    /**
+     * @param append if true, the csv is written after the content of the file
+     * @return writer to the file, created if it does not exist
+     * @throws IOException
+     */
+    public static CSVWriter open(String file, boolean append) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        return new CSVWriter(channel);
+    }
+
+    public void conditionalAppendComma() {
+        if (!firstColumn) {
+            ensure(1);
+            buffer[length++] = ',';
+        }
+        firstColumn = false;
+    }
+
+    public CSVWriter append(CharSequence charSequence) {
+        conditionalAppendComma();
+        return write(charSequence);
+    }
+
+    public CSVWriter append(int i) {
+        conditionalAppendComma();
+        writeLong(i);
+        return this;
+    }
+
+    public CSVWriter append(long l) {
+        conditionalAppendComma();
+        writeLong(l);
+        return this;
+    }
+
+    public CSVWriter append(double d) {
+        conditionalAppendComma();
+        writeDouble(d);
+        return this;
+    }
+
+    public CSVWriter newline() {
+        ensure(1);
+        buffer[length++] = '\n';
+        firstColumn = true;
+        return this;
+    }
+
+    /**
+     * Write text as it is, not as a column.
+     */
+    public CSVWriter write(CharSequence charSequence) {
+        int size = charSequence.length();
+        ensure(size);
+        for (int i = 0; i < size; i++) {
+            char c = charSequence.charAt(i);
+            if (c >= 0x80) {
+                /* anything but ASCII is encoded like a FileWriter would */
+                byte[] bytes = charSequence.toString().getBytes(Charset.defaultCharset());
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+                return this;
+            }
+            buffer[length + i] = (byte) c;
+        }
+        length += size;
+        return this;
+    }
+
+    private void writeLong(long l) {
+        ensure(20);
+        if (l < 0) {
+            buffer[length++] = '-';
+            if (l == Long.MIN_VALUE) {
+                write("9223372036854775808");
+                return;
+            }
+            l = -l;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && l >= bound; bound *= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + l % 10);
+            l /= 10;
+        }
+        length += digits;
+    }
+
+    private void writeDouble(double d) {
+        double magnitude = Math.abs(d);
+        if (magnitude != 0 && (magnitude < MIN_PLAIN || magnitude >= MAX_PLAIN) || Double.isNaN(d)) {
+            write(Double.toString(d));
+            return;
+        }
+        int maxDecimals = 0;
+        while (maxDecimals < MAX_FAST_DECIMALS && magnitude * POWERS_OF_TEN[maxDecimals + 1] < EXACT_INTEGERS) {
+            maxDecimals++;
+        }
+        if (decimal(magnitude, maxDecimals) < 0) {
+            write(Double.toString(d));
+            return;
+        }
+        /* a decimal that reads back still does with more decimals, so the
+           fewest decimals are found by bisection */
+        int low = 0;
+        int high = maxDecimals;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (decimal(magnitude, middle) >= 0) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        if (Double.doubleToRawLongBits(d) < 0) {
+            ensure(1);
+            buffer[length++] = '-';
+        }
+        writeDecimal(decimal(magnitude, low), low);
+    }
+
+    /**
+     * @return m such that m / 10^decimals is the decimal with that many
+     * decimals closest to magnitude, if it reads back as magnitude, or -1
+     */
+    private static long decimal(double magnitude, int decimals) {
+        long nearest = (long) Math.rint(magnitude * POWERS_OF_TEN[decimals]);
+        /* the product can be off by one, the quotient of exact doubles is correctly rounded */
+        return readsBack(nearest, decimals, magnitude) ? nearest
+                : readsBack(nearest - 1, decimals, magnitude) ? nearest - 1
+                : readsBack(nearest + 1, decimals, magnitude) ? nearest + 1 : -1;
+    }
+
+    private static boolean readsBack(long m, int decimals, double magnitude) {
+        return m >= 0 && m / POWERS_OF_TEN[decimals] == magnitude;
+    }
+
+    /* m / 10^decimals with at least one digit on either side of the point */
+    private void writeDecimal(long m, int decimals) {
+        long scale = (long) POWERS_OF_TEN[decimals];
+        writeLong(m / scale);
+        ensure(decimals + 2);
+        buffer[length++] = '.';
+        if (decimals == 0) {
+            buffer[length++] = '0';
+            return;
+        }
+        long fraction = m % scale;
+        for (int i = length + decimals - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        length += decimals;
+    }
+
+    /**
+     * Make room for count more bytes, flushing the buffer to the channel or
+     * growing it.
+     */
+    private void ensure(int count) {
+        if (length + count <= buffer.length) {
+            return;
+        }
+        if (channel != null) {
+            try {
+                flushBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (length + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        length = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (channel != null) {
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            flushBuffer();
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the csv written so far and not flushed to a channel
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, Charset.defaultCharset());
+    }
+}
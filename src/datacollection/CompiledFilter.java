@@ -0,0 +1,206 @@
+package datacollection;
+
+import datacollection.PoliceCall.Filter;
+import java.time.LocalDateTime;
+
+/**
+ * Immutable predicate compiled from a {@link Filter}.
+ *
+ * Severities become a bit mask, dates become epoch minute bounds and
+ * descriptions become a {@link DescriptionSet}. Clauses that cannot reject a
+ * call are left out: unbounded dates (LocalDateTime.MIN and MAX), coordinates
+ * that are not required and coordinate bounds of +/-Double.MAX_VALUE or
+ * infinity. Coordinates are assumed to be finite numbers.
+ *
+ * Besides single calls, a batch of table rows can be evaluated one clause at a
+ * time into a selection vector. Description ids must belong to the dictionary
+ * the filter was compiled with.
+ *
+ * @author Benjamin Albert
+ */
+public class CompiledFilter {
+
+    /* bit (severity + 1) is set for every severity that passes, so -1 maps to bit 0 */
+    private final long severityMask;
+    private final boolean checkSeverity;
+    private final long startMinute;
+    private final long endMinute;
+    private final boolean checkStart;
+    private final boolean checkEnd;
+    private final boolean requireCoordinate;
+    private final double minLat;
+    private final double maxLat;
+    private final double minLong;
+    private final double maxLong;
+    private final boolean checkMinLat;
+    private final boolean checkMaxLat;
+    private final boolean checkMinLong;
+    private final boolean checkMaxLong;
+    private final DescriptionSet descriptions;
+    private final boolean checkDescription;
+
+    CompiledFilter(Filter filter, long startMinute, long endMinute, DescriptionDictionary dictionary) {
+        long mask = 0;
+        for (Integer severity : filter.getSeverities()) {
+            if (severity != null && severity >= -1 && severity < 63) {
+                mask |= 1L << (severity + 1);
+            }
+        }
+        this.severityMask = mask;
+        /* -1 (unknown) and the five severity levels are the only parsed values */
+        this.checkSeverity = (mask & 0x3F) != 0x3F;
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+        this.checkStart = !filter.getStartDate().equals(LocalDateTime.MIN);
+        this.checkEnd = !filter.getEndDate().equals(LocalDateTime.MAX);
+        this.requireCoordinate = filter.isRequireCoordinate();
+        this.minLat = filter.getMinLat();
+        this.maxLat = filter.getMaxLat();
+        this.minLong = filter.getMinLong();
+        this.maxLong = filter.getMaxLong();
+        this.checkMinLat = minLat > -Double.MAX_VALUE;
+        this.checkMaxLat = maxLat < Double.MAX_VALUE;
+        this.checkMinLong = minLong > -Double.MAX_VALUE;
+        this.checkMaxLong = maxLong < Double.MAX_VALUE;
+        this.checkDescription = !filter.getDescriptionWhiteList().isEmpty() || !filter.getDescriptionBlacklist().isEmpty();
+        this.descriptions = filter.compileDescriptions(dictionary);
+    }
+
+    public boolean pass(int severity, long epochMinute, double latitude, double longitude, int descriptionId) {
+        return passDescription(descriptionId)
+                && passSeverity(severity)
+                && passDate(epochMinute)
+                && passCoordinate(latitude, longitude);
+    }
+
+    public boolean pass(PoliceCallTable table, int row) {
+        return pass(table.getSeverity(row), table.getEpochMinute(row), table.getLatitude(row), table.getLongitude(row), table.getDescriptionId(row));
+    }
+
+    /**
+     * @return true if a call can pass with this description, i.e. the
+     * description clause alone does not reject it
+     */
+    public boolean passDescription(int descriptionId) {
+        return !checkDescription || descriptions.contains(descriptionId);
+    }
+
+    /**
+     * @return true if the severity clause alone does not reject a call
+     */
+    public boolean passSeverity(int severity) {
+        return !checkSeverity || (severity >= -1 && severity < 63 && (severityMask & (1L << (severity + 1))) != 0);
+    }
+
+    /**
+     * @return true if the date clauses alone do not reject a call
+     */
+    public boolean passDate(long epochMinute) {
+        return (!checkStart || startMinute < epochMinute) && (!checkEnd || epochMinute < endMinute);
+    }
+
+    /**
+     * @return true if the coordinate clauses alone do not reject a call
+     */
+    public boolean passCoordinate(double latitude, double longitude) {
+        return (!requireCoordinate || (latitude != 0 && longitude != 0))
+                && (!checkMinLat || latitude >= minLat)
+                && (!checkMaxLat || latitude <= maxLat)
+                && (!checkMinLong || longitude >= minLong)
+                && (!checkMaxLong || longitude <= maxLong);
+    }
+
+    /**
+     * @return smallest latitude that can pass
+     */
+    double getMinLat() {
+        return checkMinLat ? minLat : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @return largest latitude that can pass
+     */
+    double getMaxLat() {
+        return checkMaxLat ? maxLat : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return smallest longitude that can pass
+     */
+    double getMinLong() {
+        return checkMinLong ? minLong : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @return largest longitude that can pass
+     */
+    double getMaxLong() {
+        return checkMaxLong ? maxLong : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return first epoch minute that can pass
+     */
+    long getStartMinute() {
+        return checkStart ? startMinute + 1 : Long.MIN_VALUE;
+    }
+
+    /**
+     * @return first epoch minute past the ones that can pass
+     */
+    long getEndMinute() {
+        return checkEnd ? endMinute : Long.MAX_VALUE;
+    }
+
+    /**
+     * Evaluate rows [from, to) of table one clause at a time.
+     *
+     * @param selection receives the passing rows in ascending order, must hold
+     * at least to - from entries
+     * @return number of passing rows
+     */
+    public int select(PoliceCallTable table, int from, int to, int[] selection) {
+        int count = 0;
+        for (int row = from; row < to; row++) {
+            selection[count] = row;
+            count += passDescription(table.getDescriptionId(row)) ? 1 : 0;
+        }
+        if (checkSeverity) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = selection[i];
+                selection[kept] = row;
+                kept += passSeverity(table.getSeverity(row)) ? 1 : 0;
+            }
+            count = kept;
+        }
+        if (checkStart || checkEnd) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = selection[i];
+                selection[kept] = row;
+                kept += passDate(table.getEpochMinute(row)) ? 1 : 0;
+            }
+            count = kept;
+        }
+        if (requireCoordinate || checkMinLat || checkMaxLat || checkMinLong || checkMaxLong) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = selection[i];
+                selection[kept] = row;
+                kept += passCoordinate(table.getLatitude(row), table.getLongitude(row)) ? 1 : 0;
+            }
+            count = kept;
+        }
+        return count;
+    }
+
+    /**
+     * @return table holding only the rows that pass
+     */
+    public PoliceCallTable apply(PoliceCallTable table) {
+        int[] selection = new int[table.size()];
+        int count = select(table, 0, table.size(), selection);
+        return table.select(selection, count);
+    }
+}
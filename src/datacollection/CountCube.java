@@ -0,0 +1,334 @@
+package datacollection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Dense counts of police calls per weather window, grid box and severity,
+ * indexed by [window][row][col][severity].
+ *
+ * The windows are those of an array of weather reports of one interval
+ * length, as made by a {@link WeatherAggregator}: every window starts a whole
+ * number of intervals after the first one, some may be missing. The window of
+ * a call is found by dividing its minutes since the first window by the
+ * interval, so filling the cube is a single pass over the calls without any
+ * allocation per window or per call.
+ *
+ * The counts are stored in blocks of whole windows, each at most
+ * MAX_BLOCK_INTS, either on the heap or off-heap in direct buffers so that
+ * cubes of years of data at a fine resolution do not need a heap of that
+ * size.
+ *
+ * Every window also lists the indices of its non-zero counts, recorded while
+ * counting, so that sparse output and coarsening take time in the number of
+ * non-zero counts rather than in the number of boxes.
+ *
+ * @author Benjamin Albert
+ */
+public class CountCube {
+
+    /** Largest number of counts stored in one buffer. */
+    public static final int MAX_BLOCK_INTS = 1 << 28;
+
+    /* tasks of a parallel count, more than threads so they even out */
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int MIN_TASK_ROWS = 1 << 14;
+
+    private final Grid grid;
+    private final boolean offHeap;
+    private final long[] startEpochMinutes;
+    private final long minutesPerWindow;
+    /* window starting each interval after the first window, -1 if none */
+    private final int[] intervalWindows;
+    /* calls of every window including those of unknown severity */
+    private final int[] calls;
+    private final int windowInts;
+    private final int windowsPerBlock;
+    private final IntBuffer[] blocks;
+    /* indices of the non-zero counts of every window in the order they became non-zero */
+    private final int[][] nonZeroIndices;
+    private final int[] nonZeroCounts;
+
+    /**
+     * @param weather windows of one interval length sorted by date and time
+     * @param grid geometry of the boxes (bounds and number of rows and
+     * columns), calls outside the bounds are rejected
+     * @param offHeap if true, the counts are stored in direct buffers
+     */
+    public CountCube(WeatherReport[] weather, Grid grid, boolean offHeap) {
+        this.grid = grid;
+        this.offHeap = offHeap;
+        this.startEpochMinutes = new long[weather.length];
+        this.minutesPerWindow = weather.length == 0 ? 1
+                : weather[0].getEndEpochMinute() - weather[0].getStartEpochMinute();
+        long firstMinute = weather.length == 0 ? 0 : weather[0].getStartEpochMinute();
+        long lastMinute = weather.length == 0 ? 0 : weather[weather.length - 1].getStartEpochMinute();
+        if (minutesPerWindow <= 0 || (lastMinute - firstMinute) / minutesPerWindow >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Windows of " + minutesPerWindow + " minutes cannot be indexed");
+        }
+        this.intervalWindows = new int[weather.length == 0 ? 0 : (int) ((lastMinute - firstMinute) / minutesPerWindow) + 1];
+        Arrays.fill(intervalWindows, -1);
+        for (int window = 0; window < weather.length; window++) {
+            long start = weather[window].getStartEpochMinute();
+            long offset = start - firstMinute;
+            if (weather[window].getEndEpochMinute() - start != minutesPerWindow || offset % minutesPerWindow != 0
+                    || (window > 0 && start <= startEpochMinutes[window - 1])) {
+                throw new IllegalArgumentException("Weather window " + weather[window].getStartDateTime()
+                        + " is not a sorted " + minutesPerWindow + " minute interval");
+            }
+            startEpochMinutes[window] = start;
+            intervalWindows[(int) (offset / minutesPerWindow)] = window;
+        }
+        this.calls = new int[weather.length];
+        this.windowInts = grid.getrBins() * grid.getcBins() * Grid.SEVERITIES;
+        if (windowInts > MAX_BLOCK_INTS) {
+            throw new IllegalArgumentException(grid.getrBins() + "x" + grid.getcBins() + " boxes do not fit in a block");
+        }
+        this.windowsPerBlock = MAX_BLOCK_INTS / windowInts;
+        this.blocks = new IntBuffer[(weather.length + windowsPerBlock - 1) / windowsPerBlock];
+        for (int block = 0; block < blocks.length; block++) {
+            int windows = Math.min(windowsPerBlock, weather.length - block * windowsPerBlock);
+            blocks[block] = allocate(windows * windowInts);
+        }
+        this.nonZeroIndices = new int[weather.length][];
+        this.nonZeroCounts = new int[weather.length];
+    }
+
+    /**
+     * Cube of the same windows over another grid, with no calls counted.
+     */
+    private CountCube(CountCube windows, Grid grid) {
+        this.grid = grid;
+        this.offHeap = windows.offHeap;
+        this.startEpochMinutes = windows.startEpochMinutes;
+        this.minutesPerWindow = windows.minutesPerWindow;
+        this.intervalWindows = windows.intervalWindows;
+        this.calls = windows.calls.clone();
+        this.windowInts = grid.getrBins() * grid.getcBins() * Grid.SEVERITIES;
+        this.windowsPerBlock = MAX_BLOCK_INTS / windowInts;
+        int windowCount = startEpochMinutes.length;
+        this.blocks = new IntBuffer[(windowCount + windowsPerBlock - 1) / windowsPerBlock];
+        for (int block = 0; block < blocks.length; block++) {
+            int blockWindows = Math.min(windowsPerBlock, windowCount - block * windowsPerBlock);
+            blocks[block] = allocate(blockWindows * windowInts);
+        }
+        this.nonZeroIndices = new int[windowCount][];
+        this.nonZeroCounts = new int[windowCount];
+    }
+
+    private IntBuffer allocate(int ints) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(ints * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.wrap(new int[ints]);
+    }
+
+    /**
+     * Count the calls of a table. Calls outside every window are left out,
+     * calls of unknown severity (-1) only count towards {@link #getCalls(int)}.
+     * @param policeCalls the calls in any order
+     */
+    public void add(PoliceCallTable policeCalls) {
+        add(policeCalls, 0, policeCalls.size());
+    }
+
+    /**
+     * Count the calls of a table in parallel, see {@link #add(PoliceCallTable)}.
+     *
+     * The windows are split into ranges holding about the same number of
+     * calls, and each range is counted by one task. Since the calls are
+     * sorted, the calls of a range are a range of rows and no two tasks touch
+     * the same window, so every task counts straight into its own part of
+     * the cube and there is nothing to merge. Every count is incremented by
+     * one task in row order, so the cube is the same as when counted
+     * sequentially.
+     * @param policeCalls the calls sorted by date and time
+     * @param pool pool the tasks run in
+     */
+    public void add(PoliceCallTable policeCalls, ForkJoinPool pool) {
+        int rows = policeCalls.size();
+        int tasks = Math.max(1, Math.min(pool.getParallelism() * TASKS_PER_THREAD, rows / MIN_TASK_ROWS));
+        /* first row and first window of every task, the last task also takes the calls past the last window */
+        int[] firstRows = new int[tasks + 1];
+        int[] firstWindows = new int[tasks + 1];
+        firstRows[tasks] = rows;
+        firstWindows[tasks] = startEpochMinutes.length;
+        for (int task = 1; task < tasks; task++) {
+            long minute = policeCalls.getEpochMinute((int) ((long) task * rows / tasks));
+            /* the task starts with the first window after the one holding minute */
+            int window = Arrays.binarySearch(startEpochMinutes, minute);
+            window = window >= 0 ? window + 1 : -window - 1;
+            firstWindows[task] = Math.max(window, firstWindows[task - 1]);
+            firstRows[task] = firstWindows[task] < startEpochMinutes.length
+                    ? policeCalls.lowerBound(startEpochMinutes[firstWindows[task]]) : rows;
+        }
+        ArrayList<ForkJoinTask<?>> running = new ArrayList<>();
+        for (int task = 0; task < tasks; task++) {
+            int from = firstRows[task];
+            int to = firstRows[task + 1];
+            if (from < to) {
+                running.add(pool.submit(() -> add(policeCalls, from, to)));
+            }
+        }
+        for (ForkJoinTask<?> task : running) {
+            task.join();
+        }
+    }
+
+    /**
+     * Count rows [from, to) of a table.
+     */
+    private void add(PoliceCallTable policeCalls, int from, int to) {
+        for (int row = from; row < to; row++) {
+            int window = windowOf(policeCalls.getEpochMinute(row));
+            if (window < 0) {
+                continue;
+            }
+            calls[window]++;
+            int severity = policeCalls.getSeverity(row);
+            if (severity == -1) {
+                continue;
+            }
+            if (severity < 0 || severity >= Grid.SEVERITIES) {
+                throw new ArrayIndexOutOfBoundsException("severity " + severity);
+            }
+            int box = grid.boxOf(policeCalls.getLatitude(row), policeCalls.getLongitude(row));
+            increment(window, box * Grid.SEVERITIES + severity, 1);
+        }
+    }
+
+    /**
+     * Add count to a count of a window, noting the index if it was zero.
+     * @param index index into {@link #getWindow(int)}
+     */
+    private void increment(int window, int index, int count) {
+        IntBuffer block = blocks[window / windowsPerBlock];
+        int blockIndex = (window % windowsPerBlock) * windowInts + index;
+        int previous = block.get(blockIndex);
+        block.put(blockIndex, previous + count);
+        if (previous == 0) {
+            int[] indices = nonZeroIndices[window];
+            if (indices == null) {
+                indices = nonZeroIndices[window] = new int[8];
+            } else if (nonZeroCounts[window] == indices.length) {
+                indices = nonZeroIndices[window] = Arrays.copyOf(indices, indices.length * 2);
+            }
+            indices[nonZeroCounts[window]++] = index;
+        }
+    }
+
+    /**
+     * @param epochMinute minutes since the epoch
+     * @return the window holding epochMinute, or -1 if there is none
+     */
+    public int windowOf(long epochMinute) {
+        if (intervalWindows.length == 0) {
+            return -1;
+        }
+        long interval = Math.floorDiv(epochMinute - startEpochMinutes[0], minutesPerWindow);
+        return interval < 0 || interval >= intervalWindows.length ? -1 : intervalWindows[(int) interval];
+    }
+
+    /**
+     * Sum the counts into a cube of the same windows over a coarser grid,
+     * see {@link Grid#coarsen(int, int)}.
+     * @param rows number of rows of the coarser grid
+     * @param cols number of columns of the coarser grid
+     * @return the coarser cube, stored like this one
+     */
+    public CountCube coarsen(int rows, int cols) {
+        Grid coarseGrid = grid.coarsen(rows, cols);
+        CountCube coarse = new CountCube(this, coarseGrid);
+        int rowsPerBox = grid.getrBins() / rows;
+        int colsPerBox = grid.getcBins() / cols;
+        for (int window = 0; window < startEpochMinutes.length; window++) {
+            IntBuffer fine = getWindow(window);
+            // only the non-zero counts, in the order they became non-zero
+            for (int entry = 0; entry < nonZeroCounts[window]; entry++) {
+                int index = nonZeroIndices[window][entry];
+                int box = index / Grid.SEVERITIES;
+                int coarseBox = (box / grid.getcBins() / rowsPerBox) * cols + (box % grid.getcBins()) / colsPerBox;
+                coarse.increment(window, coarseBox * Grid.SEVERITIES + index % Grid.SEVERITIES, fine.get(index));
+            }
+        }
+        return coarse;
+    }
+
+    /**
+     * @return geometry of the boxes
+     */
+    public Grid getGrid() {
+        return grid;
+    }
+
+    public int getRows() {
+        return grid.getrBins();
+    }
+
+    public int getCols() {
+        return grid.getcBins();
+    }
+
+    /**
+     * @return number of windows
+     */
+    public int size() {
+        return startEpochMinutes.length;
+    }
+
+    public long getStartEpochMinute(int window) {
+        return startEpochMinutes[window];
+    }
+
+    public long getEndEpochMinute(int window) {
+        return startEpochMinutes[window] + minutesPerWindow;
+    }
+
+    /**
+     * @return calls in the window, including those of unknown severity
+     */
+    public int getCalls(int window) {
+        return calls[window];
+    }
+
+    /**
+     * @return number of non-zero counts of the window
+     */
+    public int getNonZeroCount(int window) {
+        return nonZeroCounts[window];
+    }
+
+    /**
+     * @return ascending indices into {@link #getWindow(int)} of the non-zero
+     * counts of the window
+     */
+    public int[] getNonZeroIndices(int window) {
+        if (nonZeroIndices[window] == null) {
+            return new int[0];
+        }
+        int[] indices = Arrays.copyOf(nonZeroIndices[window], nonZeroCounts[window]);
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    public int getCount(int window, int row, int col, int severity) {
+        return getWindow(window).get((row * grid.getcBins() + col) * Grid.SEVERITIES + severity);
+    }
+
+    /**
+     * @return view of the counts of the window indexed by
+     * (row * cols + col) * Grid.SEVERITIES + severity
+     */
+    public IntBuffer getWindow(int window) {
+        IntBuffer view = blocks[window / windowsPerBlock].duplicate();
+        int offset = (window % windowsPerBlock) * windowInts;
+        view.position(offset);
+        view.limit(offset + windowInts);
+        return view.slice();
+    }
+}
@@ -0,0 +1,144 @@
+package datacollection;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Counts at several resolutions, derived from a single fine base
+ * {@link Grid} or {@link CountCube} instead of binning the calls again for
+ * every resolution.
+ *
+ * A box of a coarser level covers a block of whole boxes of the base, so its
+ * counts are the sum of theirs and every level must divide the base (e.g.
+ * 60x60, 30x30, 15x15 and 8x8 from 120x120). Levels are built from the
+ * finest level already built that they divide, finest first, so 15x15 is
+ * summed from 30x30 rather than from the base.
+ *
+ * @author Benjamin Albert
+ */
+public class CountPyramid {
+
+    /** Default resolution of the base grid, divisible by 15, 30 and 60. */
+    public static final int DEFAULT_BASE_BINS = 120;
+
+    private final Grid[] levels;
+    /* null unless built from a cube */
+    private final CountCube[] cubes;
+
+    /**
+     * @param base grid the calls were counted into
+     * @param rows number of rows of every level
+     * @param cols number of columns of every level, same length as rows
+     */
+    public CountPyramid(Grid base, int[] rows, int[] cols) {
+        int[][] plan = plan(base.getrBins(), base.getcBins(), rows, cols);
+        levels = new Grid[rows.length];
+        cubes = null;
+        for (int level : plan[0]) {
+            Grid source = plan[1][level] < 0 ? base : levels[plan[1][level]];
+            levels[level] = source.getrBins() == rows[level] && source.getcBins() == cols[level]
+                    ? source : source.coarsen(rows[level], cols[level]);
+        }
+    }
+
+    /**
+     * @param base cube the calls were counted into
+     * @param rows number of rows of every level
+     * @param cols number of columns of every level, same length as rows
+     */
+    public CountPyramid(CountCube base, int[] rows, int[] cols) {
+        int[][] plan = plan(base.getRows(), base.getCols(), rows, cols);
+        levels = new Grid[rows.length];
+        cubes = new CountCube[rows.length];
+        for (int level : plan[0]) {
+            CountCube source = plan[1][level] < 0 ? base : cubes[plan[1][level]];
+            cubes[level] = source.getRows() == rows[level] && source.getCols() == cols[level]
+                    ? source : source.coarsen(rows[level], cols[level]);
+            levels[level] = cubes[level].getGrid();
+        }
+    }
+
+    /**
+     * @return the levels in the order they are built, and the level each is
+     * summed from (-1 for the base)
+     */
+    private static int[][] plan(int baseRows, int baseCols, int[] rows, int[] cols) {
+        if (rows.length != cols.length) {
+            throw new IllegalArgumentException(rows.length + " rows for " + cols.length + " columns");
+        }
+        Integer[] finestFirst = new Integer[rows.length];
+        for (int level = 0; level < rows.length; level++) {
+            finestFirst[level] = level;
+        }
+        Arrays.sort(finestFirst, Comparator.comparingLong((Integer level) -> (long) rows[level] * cols[level]).reversed());
+        int[] order = new int[rows.length];
+        int[] sources = new int[rows.length];
+        for (int built = 0; built < rows.length; built++) {
+            int level = finestFirst[built];
+            order[built] = level;
+            if (baseRows % rows[level] != 0 || baseCols % cols[level] != 0) {
+                throw new IllegalArgumentException(rows[level] + "x" + cols[level] + " does not divide the base "
+                        + baseRows + "x" + baseCols);
+            }
+            /* the last level built that the level divides is the coarsest such level */
+            sources[level] = -1;
+            for (int previous = 0; previous < built; previous++) {
+                if (rows[order[previous]] % rows[level] == 0 && cols[order[previous]] % cols[level] == 0) {
+                    sources[level] = order[previous];
+                }
+            }
+        }
+        return new int[][] {order, sources};
+    }
+
+    /**
+     * @return number of levels
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * @param level index of the level in the arrays given to the constructor
+     * @return counts of the level, only its geometry if built from a cube
+     */
+    public Grid getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * @param level index of the level in the arrays given to the constructor
+     * @return counts of the level, null unless built from a cube
+     */
+    public CountCube getCube(int level) {
+        return cubes == null ? null : cubes[level];
+    }
+
+    /**
+     * @return the level of rows x cols, or null if there is none
+     */
+    public Grid getLevel(int rows, int cols) {
+        for (Grid level : levels) {
+            if (level.getrBins() == rows && level.getcBins() == cols) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param bins number of rows or columns of a base grid
+     * @return every number of rows or columns a level of the base can have,
+     * largest first (e.g. 120, 60, 40, 30, 24, 20, 15, ... for 120)
+     */
+    public static int[] divisors(int bins) {
+        int[] divisors = new int[bins];
+        int count = 0;
+        for (int divisor = bins; divisor >= 1; divisor--) {
+            if (bins % divisor == 0) {
+                divisors[count++] = divisor;
+            }
+        }
+        return Arrays.copyOf(divisors, count);
+    }
+}
@@ -1,9 +1,28 @@
 package datacollection;
 
+import datacollection.PoliceCall.Filter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -19,18 +38,41 @@ public class DataDownloader {
     public static final String CRIME_DATA_FILE_NAME = "crime_data.csv";
     public static final int CONNECTION_TIMEOUT = (int) 1E5;
     public static final int READ_TIMEOUT = (int) 1E6;
+    public static final int BLOCK_BYTES = 1 << 16;
+    public static final int QUEUED_BLOCKS = 256;
+    /* SoQL name of the callDateTime column of the crime data */
+    public static final String CALL_DATE_TIME_FIELD = "calldatetime";
+    public static final DateTimeFormatter SOQL_DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
     
     public static String getCrimeDataURL(){
         return new URLBuilder("https://data.baltimorecity.gov/api/views/xviu-ezkt/rows.csv")
                 .addArg("accesType", "DOWNLOAD")
                 .toURL();
     }
+
+    /**
+     * @param sinceEpochMinute only calls at or after this date and time are
+     * exported, in the same columns and formats as the whole export
+     */
+    public static String getCrimeDataURL(long sinceEpochMinute) throws IOException {
+        String where = CALL_DATE_TIME_FIELD + " >= '"
+                + SOQL_DATE_TIME_FORMATTER.format(TimestampParser.toLocalDateTime(sinceEpochMinute)) + "'";
+        return new URLBuilder("https://data.baltimorecity.gov/api/views/xviu-ezkt/rows.csv")
+                .addArg("accesType", "DOWNLOAD")
+                .addArg("$where", URLEncoder.encode(where, "UTF-8"))
+                .toURL();
+    }
     
     public static String getWeatherDataURL() throws IOException {
         LocalDateTime currentDateTime = LocalDateTime.now();
         return new URLBuilder("https://mesonet.agron.iastate.edu/cgi-bin/request/asos.py")
                 .addArg("station", "DMH")
                 .addArg("station", "BWI")
+                // nearby stations, only used to interpolate spatial weather
+                .addArg("station", "MTN")
+                .addArg("station", "FME")
+                .addArg("station", "DMW")
+                .addArg("station", "ADW")
                 .addArg("data", "tmpf")
                 .addArg("data", "relh")
                 .addArg("data", "feel")
@@ -59,4 +101,212 @@ public class DataDownloader {
     public static void download(String url, File saveFile, int connectionTimeout, int readTimeout) throws IOException {
         FileUtils.copyURLToFile(new URL(url), saveFile, connectionTimeout, readTimeout);
     }
+
+    /**
+     * Download and parse 911 calls at the same time. The response body is
+     * teed: every block is written to saveFile and handed to a parser running
+     * on another thread, so the parse finishes shortly after the download.
+     *
+     * The body is written to saveFile.part, which replaces saveFile once the
+     * transfer is complete. If the transfer fails, saveFile.part keeps the
+     * bytes received so far, and saveFile.part.validator the ETag (or else the
+     * Last-Modified date) of the file they came from. If resume is true and
+     * both exist, only the remaining bytes are requested with an HTTP Range
+     * header and appended, and the bytes already on disk are parsed first.
+     * The range is sent with If-Range, so a file changed on the server since
+     * is sent whole and the download starts over; so does a server that
+     * ignores the range. A 416 response only means the partial file is whole
+     * if its Content-Range length equals the length of the partial file,
+     * otherwise the download starts over too. Without a validator a partial
+     * file cannot be checked and is never resumed.
+     *
+     * @param filter calls that do not pass are dropped (null keeps every call)
+     * @return calls sorted by date and time
+     */
+    public static PoliceCallTable downloadPoliceCalls(String url, File saveFile, Filter filter, boolean resume) throws IOException {
+        return downloadPoliceCalls(url, saveFile, filter, resume, CONNECTION_TIMEOUT, READ_TIMEOUT);
+    }
+
+    public static PoliceCallTable downloadPoliceCalls(String url, File saveFile, Filter filter, boolean resume, int connectionTimeout, int readTimeout) throws IOException {
+        File partFile = new File(saveFile.getPath() + ".part");
+        File validatorFile = new File(partFile.getPath() + ".validator");
+        String validator = resume && partFile.exists() ? readValidator(validatorFile) : null;
+        long offset = validator != null ? partFile.length() : 0;
+        HttpURLConnection connection = connect(url, offset, validator, connectionTimeout, readTimeout);
+        int responseCode = connection.getResponseCode();
+        boolean complete = false;
+        if (offset > 0 && responseCode == 416 && contentRange(connection, false) == offset) {
+            /* range not satisfiable: nothing past what is already on disk */
+            complete = true;
+        } else if (offset > 0 && (responseCode == 416
+                || responseCode == HttpURLConnection.HTTP_PARTIAL && contentRange(connection, true) != offset)) {
+            /* the partial file is not a prefix of the file on the server */
+            connection.disconnect();
+            offset = 0;
+            connection = connect(url, offset, null, connectionTimeout, readTimeout);
+            responseCode = connection.getResponseCode();
+        }
+        if (!complete) {
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                offset = 0;
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL || offset == 0) {
+                connection.disconnect();
+                throw new IOException("unexpected response " + responseCode + " for " + url);
+            }
+            if (offset == 0) {
+                writeValidator(validatorFile, connection);
+            }
+        }
+        BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<PoliceCallTable> parsed = executor.submit(new ParseTask(partFile, offset, blocks, filter));
+        try {
+            if (!complete) {
+                try (InputStream body = connection.getInputStream();
+                        FileOutputStream out = new FileOutputStream(partFile, offset > 0)) {
+                    long expected = connection.getContentLengthLong();
+                    long received = 0;
+                    byte[] block = new byte[BLOCK_BYTES];
+                    int read;
+                    while ((read = body.read(block)) != -1) {
+                        out.write(block, 0, read);
+                        enqueue(blocks, Arrays.copyOf(block, read), parsed);
+                        received += read;
+                    }
+                    /* a connection closed early can look like the end of the body */
+                    if (expected >= 0 && received < expected) {
+                        throw new IOException("transfer of " + url + " interrupted after " + received + " of " + expected + " bytes");
+                    }
+                }
+            }
+            enqueue(blocks, new byte[0], parsed);
+            PoliceCallTable policeCalls = parsed.get();
+            Files.move(partFile.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(validatorFile.toPath());
+            return policeCalls;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            parsed.cancel(true);
+            executor.shutdownNow();
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Request url from byte offset on, if the file still matches validator.
+     */
+    private static HttpURLConnection connect(String url, long offset, String validator, int connectionTimeout, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectionTimeout);
+        connection.setReadTimeout(readTimeout);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            connection.setRequestProperty("If-Range", validator);
+        }
+        return connection;
+    }
+
+    /**
+     * @param first if true the first byte of "Content-Range: bytes first-last/length",
+     * otherwise its length
+     * @return the value, or -1 if there is none
+     */
+    private static long contentRange(HttpURLConnection connection, boolean first) {
+        String range = connection.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        String value = first
+                ? range.substring("bytes ".length(), Math.max(range.indexOf('-'), "bytes ".length()))
+                : range.substring(range.lastIndexOf('/') + 1);
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the validator a partial file was saved with, or null if there
+     * is none
+     */
+    private static String readValidator(File validatorFile) throws IOException {
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        String validator = new String(Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8).trim();
+        return validator.isEmpty() ? null : validator;
+    }
+
+    /**
+     * Keep the strong ETag, or else the Last-Modified date, of a response
+     * whose body starts a partial file. If-Range accepts no weak ETag.
+     */
+    private static void writeValidator(File validatorFile, HttpURLConnection connection) throws IOException {
+        String validator = connection.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = connection.getHeaderField("Last-Modified");
+        }
+        if (validator == null) {
+            Files.deleteIfExists(validatorFile.toPath());
+        } else {
+            Files.write(validatorFile.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Blocks while the parser is behind, but gives up if the parser failed.
+     */
+    private static void enqueue(BlockingQueue<byte[]> blocks, byte[] block, Future<PoliceCallTable> parsed) throws InterruptedException, ExecutionException {
+        while (!blocks.offer(block, 100, TimeUnit.MILLISECONDS)) {
+            if (parsed.isDone()) {
+                parsed.get();
+                throw new IllegalStateException("parser stopped early");
+            }
+        }
+    }
+
+    /**
+     * Parses the first prefixBytes of partFile and then every queued block
+     * until an empty block arrives.
+     */
+    private static class ParseTask implements Callable<PoliceCallTable> {
+
+        private final File partFile;
+        private final long prefixBytes;
+        private final BlockingQueue<byte[]> blocks;
+        private final Filter filter;
+
+        ParseTask(File partFile, long prefixBytes, BlockingQueue<byte[]> blocks, Filter filter) {
+            this.partFile = partFile;
+            this.prefixBytes = prefixBytes;
+            this.blocks = blocks;
+            this.filter = filter;
+        }
+
+        @Override
+        public PoliceCallTable call() throws IOException, InterruptedException {
+            PoliceCallReader.StreamParser parser = new PoliceCallReader.StreamParser(filter);
+            if (prefixBytes > 0) {
+                try (InputStream prefix = new FileInputStream(partFile)) {
+                    byte[] block = new byte[BLOCK_BYTES];
+                    long remaining = prefixBytes;
+                    int read;
+                    while (remaining > 0 && (read = prefix.read(block, 0, (int) Math.min(block.length, remaining))) != -1) {
+                        parser.accept(block, 0, read);
+                        remaining -= read;
+                    }
+                }
+            }
+            byte[] block;
+            while ((block = blocks.take()).length > 0) {
+                parser.accept(block, 0, block.length);
+            }
+            return parser.finish();
+        }
+    }
 }
@@ -1,14 +1,11 @@
 package datacollection;
 
-import com.google.gson.Gson;
-
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.nio.IntBuffer;
+import java.time.YearMonth;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -17,45 +14,41 @@ import java.util.Arrays;
 
 public class DataFormatting {
 
-    private static Grid grid;
+    /** Layout of the counts of a line of a formatted file. */
+    public static enum LAYOUT {
+        /* every count of every box */
+        DENSE,
+        /* row, column, severity and count of the non-zero counts only */
+        SPARSE
+    }
+
     private static double minLat;
     private static double maxLat;
     private static double minLong;
     private static double maxLong;
-    private static final int rBins = 15;
-    private static final int cBins = 15;
-
-    // Binning Per Day -- New Grid is Created for each day
-    private static void binning(ArrayList<PoliceCall> policeCalls) {
-        grid = new Grid();
-        grid.setDateTime(policeCalls.get(0).getDatetime());
-        grid.setMaxLat(maxLat);
-        grid.setMinLat(minLat);
-        grid.setMinLong(minLong);
-        grid.setMaxLong(maxLong);
-        for (PoliceCall call : policeCalls) {
-            grid.insertCall(call);
-        }
-    }
+    private static int rBins = Grid.DEFAULT_BINS;
+    private static int cBins = Grid.DEFAULT_BINS;
 
     // Calculate Max/Min Longitude/Latitude for grid bounds
-    private static void MaxMin(PoliceCall[] policeCalls) {
+    private static void MaxMin(PoliceCallTable policeCalls) {
         minLat = 100.;
         maxLat = -100.;
         minLong = 200.;
         maxLong = -200;
-        for (PoliceCall policeCall : policeCalls) {
-            if (minLat > policeCall.getLatitude()) {
-                minLat = policeCall.getLatitude();
+        for (int row = 0; row < policeCalls.size(); row++) {
+            double latitude = policeCalls.getLatitude(row);
+            double longitude = policeCalls.getLongitude(row);
+            if (minLat > latitude) {
+                minLat = latitude;
             }
-            if (maxLat < policeCall.getLatitude()) {
-                maxLat = policeCall.getLatitude();
+            if (maxLat < latitude) {
+                maxLat = latitude;
             }
-            if (minLong > policeCall.getLongitude()) {
-                minLong = policeCall.getLongitude();
+            if (minLong > longitude) {
+                minLong = longitude;
             }
-            if (maxLong < policeCall.getLongitude()) {
-                maxLong = policeCall.getLongitude();
+            if (maxLong < longitude) {
+                maxLong = longitude;
             }
         }
     }
@@ -67,57 +60,437 @@ public class DataFormatting {
      * @throws IOException when file is not found
      */
     public static void Formatting(WeatherReport[] weather, PoliceCall[] policeCalls, String saveFilePath) throws IOException {
+        Formatting(weather, PoliceCallTable.of(policeCalls), saveFilePath);
+    }
+
+    /** Produce a formatted CSV file with Weather and Crime Data.
+     * @param weather the weather data
+     * @param policeCalls the crime data sorted by Date/Time
+     * @param saveFilePath the save directory
+     * @throws IOException when file is not found
+     */
+    public static void Formatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath) throws IOException {
+        Formatting(weather, policeCalls, saveFilePath, false);
+    }
+
+    /** Produce a formatted CSV file with Weather and Crime Data.
+     * @param weather the weather data
+     * @param policeCalls the crime data sorted by Date/Time
+     * @param saveFilePath the save directory
+     * @param spatialWeather if true, every line also holds the weather of each
+     * cell, interpolated from the stations by inverse distance (the weather
+     * must come from a WeatherAggregator); the file name ends with _Spatial
+     * @throws IOException when file is not found
+     */
+    public static void Formatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath, boolean spatialWeather) throws IOException {
+        Formatting(weather, policeCalls, saveFilePath, Grid.DEFAULT_BINS, Grid.DEFAULT_BINS, spatialWeather);
+    }
+
+    /** Produce a formatted CSV file with Weather and Crime Data.
+     * @param weather the weather data
+     * @param policeCalls the crime data sorted by Date/Time
+     * @param saveFilePath the save directory
+     * @param rows number of grid rows
+     * @param cols number of grid columns
+     * @param spatialWeather if true, every line also holds the weather of each
+     * cell, see {@link #Formatting(WeatherReport[], PoliceCallTable, String, boolean)}
+     * @throws IOException when file is not found
+     */
+    public static void Formatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath, int rows, int cols, boolean spatialWeather) throws IOException {
+        Formatting(weather, policeCalls, saveFilePath, rows, cols, new int[] {rows}, new int[] {cols}, spatialWeather);
+    }
+
+    /** Produce a formatted CSV file with Weather and Crime Data for each of
+     * several resolutions in one run. The calls are counted once into a
+     * {@link CountCube} at the base resolution and every resolution is summed
+     * from those counts (see {@link CountPyramid}), so each must divide the
+     * base. The weather windows must all have the same length.
+     * @param weather the weather data
+     * @param policeCalls the crime data sorted by Date/Time
+     * @param saveFilePath the save directory
+     * @param baseRows number of rows the calls are binned into
+     * @param baseCols number of columns the calls are binned into
+     * @param rows number of grid rows of each file
+     * @param cols number of grid columns of each file
+     * @param spatialWeather if true, every line also holds the weather of each
+     * cell, see {@link #Formatting(WeatherReport[], PoliceCallTable, String, boolean)}
+     * @throws IOException when file is not found
+     */
+    public static void Formatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath, int baseRows, int baseCols, int[] rows, int[] cols, boolean spatialWeather) throws IOException {
+        Formatting(weather, policeCalls, saveFilePath, baseRows, baseCols, rows, cols, spatialWeather, false);
+    }
+
+    /** Produce formatted CSV files, see
+     * {@link #Formatting(WeatherReport[], PoliceCallTable, String, int, int, int[], int[], boolean)},
+     * and optionally the same data as NumPy arrays next to each file (see
+     * {@link #writeNpy(WeatherReport[], CountCube, StationWeights, File, LAYOUT)}).
+     * @param npy if true, the arrays are written too
+     * @throws IOException when file is not found
+     */
+    public static void Formatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath, int baseRows, int baseCols, int[] rows, int[] cols, boolean spatialWeather, boolean npy) throws IOException {
+        Formatting(weather, policeCalls, saveFilePath, baseRows, baseCols, rows, cols, spatialWeather, npy, LAYOUT.DENSE);
+    }
+
+    /** Produce formatted CSV files and optionally NumPy arrays, see
+     * {@link #Formatting(WeatherReport[], PoliceCallTable, String, int, int, int[], int[], boolean, boolean)},
+     * with the counts in the given layout. Existing files are replaced. Sparse files end with _Sparse and
+     * their counts are written by {@link QuarterDayData#writeSparse(CSVBuilder)},
+     * their arrays hold the non-zero counts only.
+     * @param layout layout of the counts
+     * @throws IOException when file is not found
+     */
+    public static void Formatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath, int baseRows, int baseCols, int[] rows, int[] cols, boolean spatialWeather, boolean npy, LAYOUT layout) throws IOException {
+        rBins = baseRows;
+        cBins = baseCols;
         // Debugging purposes --> must match printed total in CSV
-        System.out.println("Total # of Calls: " + policeCalls.length);
-        int total = 0;
+        System.out.println("Total # of Calls: " + policeCalls.size());
+        int[] totals = new int[rows.length];
         // Set grid bounds based on all of the police calls
         MaxMin(policeCalls);
-        // Name of formatted file
-        String fileName = "Formatted_" + rBins + "x" + cBins + "_All_DataHigh.csv";
-        File file = new File(saveFilePath + fileName);
-        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file, true));
         String bounds = boundstoCSV();
-        bufferedWriter.write(bounds);
-        String content;
-        // Sort the array of all policecalls using the Date/Time
-        Arrays.sort(policeCalls, PoliceCall.DATE_TIME_COMPARATOR);
-        int k = 0;
-        LocalDateTime beginDatetime;
-        LocalDateTime endDatetime;
-        ArrayList<PoliceCall> quarterCalls;
+        CountPyramid pyramid = countPyramid(weather, policeCalls, rows, cols, ForkJoinPool.commonPool());
+        CountCube cube = pyramid.getCube(0);
+        StationWeights[] stationWeights = new StationWeights[rows.length];
+        CSVWriter[] csvWriters = new CSVWriter[rows.length];
+        for (int level = 0; level < rows.length; level++) {
+            // Weights depend only on the grid bounds, so they are computed once
+            if (spatialWeather && weather.length > 0) {
+                stationWeights[level] = stationWeights(weather, pyramid.getLevel(level));
+            }
+            File file = formattedFile(saveFilePath, rows[level], cols[level], spatialWeather, layout);
+            csvWriters[level] = CSVWriter.open(file.getPath(), false);
+            csvWriters[level].write(bounds);
+            if (npy) {
+                writeNpy(weather, pyramid.getCube(level), stationWeights[level], file, layout);
+            }
+        }
+        CSVBuilder[] csvBuilders = new CSVBuilder[rows.length];
+        for (int level = 0; level < rows.length; level++) {
+            csvBuilders[level] = new CSVBuilder(csvWriters[level]);
+        }
         for (int i = 0; i < weather.length; i++) {
-        //while (k < policeCalls.length) {
-            beginDatetime = weather[i].getStartDateTime();
-            endDatetime = weather[i].getEndDateTime();
-            quarterCalls = new ArrayList<>();
-            // insert the first call to dailyCalls
-            // if the next call has the same date as the last, continue adding to the same list
-            while (k < policeCalls.length && (policeCalls[k].getDatetime().isEqual(beginDatetime) || policeCalls[k].getDatetime().isAfter(beginDatetime)) && policeCalls[k].getDatetime().isBefore(endDatetime)) {
-                quarterCalls.add(policeCalls[k]);
-                k++;
-            }
-            if (quarterCalls.size() != 0) {
-                binning(quarterCalls);
-                QuarterDayData quarter = new QuarterDayData(grid, weather[i]);
-                content = quarter.toCSV();
-                // add csv descriptive min/max lat/long
-                total += quarter.callsPerQuarterDay();
-                bufferedWriter.write(content);
+            if (cube.getCalls(i) > 0) {
+                for (int level = 0; level < rows.length; level++) {
+                    QuarterDayData quarter = new QuarterDayData(pyramid.getCube(level), i, weather[i], stationWeights[level]);
+                    // lines are streamed to the file as they are built
+                    totals[level] += quarter.callsPerQuarterDay();
+                    if (layout == LAYOUT.SPARSE) {
+                        quarter.writeSparse(csvBuilders[level]);
+                    } else {
+                        quarter.write(csvBuilders[level]);
+                    }
+                }
             }
         }
 
         // Debugging purposes --> Must match previous printed value
-        System.out.println("Total in CSV: " + total);
+        for (int level = 0; level < rows.length; level++) {
+            System.out.println("Total in CSV: " + totals[level]);
+        }
         debugPrints(policeCalls);
-        /*
-        if (saveFilePath.endsWith("json")) {
-            content = new Gson().toJson(policeCalls);
+
+        for (CSVWriter csvWriter : csvWriters) {
+            csvWriter.close();
+        }
+    }
+
+    /** Produce the formatted data partitioned by month, see
+     * {@link #partitionedFormatting(WeatherReport[], PoliceCallTable, String, int, int, int[], int[], boolean, LAYOUT, ForkJoinPool)}.
+     * @return number of partitions written
+     * @throws IOException when a partition cannot be written
+     */
+    public static int partitionedFormatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath) throws IOException {
+        return partitionedFormatting(weather, policeCalls, saveFilePath, Grid.DEFAULT_BINS, Grid.DEFAULT_BINS,
+                new int[] {Grid.DEFAULT_BINS}, new int[] {Grid.DEFAULT_BINS}, false, LAYOUT.DENSE, ForkJoinPool.commonPool());
+    }
+
+    /** Produce the formatted data of each resolution as a directory of
+     * monthly partitions instead of a single file, see {@link FormattedPartitions}.
+     * The directory is named like the formatted file without .csv. Running it
+     * again rewrites only the months whose lines change, e.g. after calls
+     * were added to the latest windows, and never duplicates lines.
+     * @param weather the weather data
+     * @param policeCalls the crime data sorted by Date/Time
+     * @param saveFilePath the save directory
+     * @param baseRows number of rows the calls are binned into
+     * @param baseCols number of columns the calls are binned into
+     * @param rows number of grid rows of each resolution
+     * @param cols number of grid columns of each resolution
+     * @param spatialWeather if true, every line also holds the weather of each
+     * cell, see {@link #Formatting(WeatherReport[], PoliceCallTable, String, boolean)}
+     * @param layout layout of the counts
+     * @param pool pool the calls are counted and the partitions written in
+     * @return number of partitions written
+     * @throws IOException when a partition cannot be written
+     */
+    public static int partitionedFormatting(WeatherReport[] weather, PoliceCallTable policeCalls, String saveFilePath, int baseRows, int baseCols, int[] rows, int[] cols, boolean spatialWeather, LAYOUT layout, ForkJoinPool pool) throws IOException {
+        rBins = baseRows;
+        cBins = baseCols;
+        MaxMin(policeCalls);
+        String bounds = boundstoCSV();
+        CountPyramid pyramid = countPyramid(weather, policeCalls, rows, cols, pool);
+        int written = 0;
+        for (int level = 0; level < rows.length; level++) {
+            StationWeights stationWeights = null;
+            if (spatialWeather && weather.length > 0) {
+                stationWeights = stationWeights(weather, pyramid.getLevel(level));
+            }
+            File directory = partitionDirectory(saveFilePath, rows[level], cols[level], spatialWeather, layout);
+            written += new FormattedPartitions(directory, bounds, layout).write(weather, pyramid.getCube(level), stationWeights, pool);
+        }
+        System.out.println("Written partitions: " + written);
+        return written;
+    }
+
+    // Every call is counted in one parallel pass within the current bounds,
+    // then summed into each resolution
+    private static CountPyramid countPyramid(WeatherReport[] weather, PoliceCallTable policeCalls, int[] rows, int[] cols, ForkJoinPool pool) {
+        Grid base = new Grid(rBins, cBins);
+        base.setMaxLat(maxLat);
+        base.setMinLat(minLat);
+        base.setMinLong(minLong);
+        base.setMaxLong(maxLong);
+        CountCube cube = new CountCube(weather, base, false);
+        cube.add(policeCalls, pool);
+        return new CountPyramid(cube, rows, cols);
+    }
+
+    // Weights of the stations of weather for every cell of grid, which only
+    // weather reports made by a WeatherAggregator locate
+    private static StationWeights stationWeights(WeatherReport[] weather, Grid grid) {
+        StationLocations locations = weather[0].getStationLocations();
+        if (locations == null) {
+            throw new IllegalArgumentException("spatial weather needs weather reports made by a WeatherAggregator");
+        }
+        return new StationWeights(grid, locations, StationWeights.DEFAULT_POWER);
+    }
+
+    /** Write the counts and weather of a formatted CSV file as NumPy arrays,
+     * which numpy.load(file, mmap_mode='r') maps instead of parsing. Unlike
+     * the CSV file, every weather window is kept, including those without
+     * calls, so that the windows are evenly spaced. Missing weather is NaN.
+     * <ul>
+     * <li>_Counts.npy int32 [window, row, col, severity], or if the layout is
+     * sparse, _Coo.npy int32 [entry, 5] holding window, row, col, severity
+     * and count of every non-zero count</li>
+     * <li>_Windows.npy int64 [window], start of each window in minutes from
+     * 1970-01-01T00:00 in the local time of the calls</li>
+     * <li>_Weather.npy float64 [window, 3], fahrenheit, precipitation and
+     * humidity</li>
+     * <li>_SpatialWeather.npy float64 [window, 3, row, col], the weather of
+     * every cell, only if stationWeights is not null</li>
+     * <li>_Bounds.npy float64 [4], min lat, max lat, min long and max long</li>
+     * </ul>
+     * @param weather the weather data the cube was made from
+     * @param cube the counts
+     * @param stationWeights weights for the geometry of the cube, or null
+     * @param file the CSV file, the arrays replace its .csv
+     * @param layout layout of the counts
+     * @throws IOException when file is not found
+     */
+    private static void writeNpy(WeatherReport[] weather, CountCube cube, StationWeights stationWeights, File file, LAYOUT layout) throws IOException {
+        String path = file.getPath().substring(0, file.getPath().length() - ".csv".length());
+        int windows = cube.size();
+        int rows = cube.getRows();
+        int cols = cube.getCols();
+        WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD[] fields = {
+            WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT,
+            WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES,
+            WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY
+        };
+        if (layout == LAYOUT.SPARSE) {
+            // the cube noted the non-zero counts while counting
+            long entries = 0;
+            for (int i = 0; i < windows; i++) {
+                entries += cube.getNonZeroCount(i);
+            }
+            NpyWriter coo = new NpyWriter(path + "_Coo.npy", NpyWriter.INT32, entries, 5);
+            for (int i = 0; i < windows; i++) {
+                IntBuffer window = cube.getWindow(i);
+                for (int j : cube.getNonZeroIndices(i)) {
+                    int box = j / Grid.SEVERITIES;
+                    coo.putInt(i);
+                    coo.putInt(box / cols);
+                    coo.putInt(box % cols);
+                    coo.putInt(j % Grid.SEVERITIES);
+                    coo.putInt(window.get(j));
+                }
+            }
+            coo.close();
         } else {
-            content = toCSV(policeCalls);
-        }*/
+            NpyWriter counts = new NpyWriter(path + "_Counts.npy", NpyWriter.INT32, windows, rows, cols, Grid.SEVERITIES);
+            for (int i = 0; i < windows; i++) {
+                counts.putInts(cube.getWindow(i));
+            }
+            counts.close();
+        }
+        NpyWriter starts = new NpyWriter(path + "_Windows.npy", NpyWriter.INT64, windows);
+        for (int i = 0; i < windows; i++) {
+            starts.putLong(cube.getStartEpochMinute(i));
+        }
+        starts.close();
+        NpyWriter values = new NpyWriter(path + "_Weather.npy", NpyWriter.FLOAT64, windows, fields.length);
+        for (int i = 0; i < windows; i++) {
+            for (WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD field : fields) {
+                values.putDouble(weather[i].getValue(field));
+            }
+        }
+        values.close();
+        if (stationWeights != null) {
+            NpyWriter cells = new NpyWriter(path + "_SpatialWeather.npy", NpyWriter.FLOAT64, windows, fields.length, rows, cols);
+            for (int i = 0; i < windows; i++) {
+                for (WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD field : fields) {
+                    for (double value : stationWeights.interpolate(weather[i], field)) {
+                        cells.putDouble(value);
+                    }
+                }
+            }
+            cells.close();
+        }
+        NpyWriter bounds = new NpyWriter(path + "_Bounds.npy", NpyWriter.FLOAT64, 4);
+        bounds.putDouble(minLat);
+        bounds.putDouble(maxLat);
+        bounds.putDouble(minLong);
+        bounds.putDouble(maxLong);
+        bounds.close();
+    }
 
-        bufferedWriter.flush();
-        bufferedWriter.close();
+    /** Update the monthly partitions of {@link #partitionedFormatting(WeatherReport[], PoliceCallTable, String)}
+     * after calls were added, see
+     * {@link #updateFormatting(WeatherReport[], PoliceCallTable, PoliceCallTable, String, int, int, boolean, LAYOUT, ForkJoinPool)}.
+     * @param weather the weather data sorted by Date/Time
+     * @param policeCalls all of the crime data sorted by Date/Time
+     * @param newCalls the crime data added since the partitions were written
+     * @param saveFilePath the save directory
+     * @throws IOException when a partition cannot be written
+     */
+    public static void updateFormatting(WeatherReport[] weather, PoliceCallTable policeCalls, PoliceCallTable newCalls, String saveFilePath) throws IOException {
+        updateFormatting(weather, policeCalls, newCalls, saveFilePath, Grid.DEFAULT_BINS, Grid.DEFAULT_BINS);
+    }
+
+    /** Update the monthly partitions of the given resolution after calls were
+     * added, see
+     * {@link #updateFormatting(WeatherReport[], PoliceCallTable, PoliceCallTable, String, int, int, boolean, LAYOUT, ForkJoinPool)}.
+     * @param rows number of grid rows
+     * @param cols number of grid columns
+     * @throws IOException when a partition cannot be written
+     */
+    public static void updateFormatting(WeatherReport[] weather, PoliceCallTable policeCalls, PoliceCallTable newCalls, String saveFilePath, int rows, int cols) throws IOException {
+        updateFormatting(weather, policeCalls, newCalls, saveFilePath, rows, cols, false, LAYOUT.DENSE, ForkJoinPool.commonPool());
+    }
+
+    /** Update the monthly partitions of
+     * {@link #partitionedFormatting(WeatherReport[], PoliceCallTable, String, int, int, int[], int[], boolean, LAYOUT, ForkJoinPool)}
+     * after calls were added. Only the calls of the months from the first to
+     * the last month holding a new call are counted, and of those months only
+     * the partitions whose lines change are rewritten, so the cost grows with
+     * the new calls rather than with the history. The bounds of the existing
+     * partitions are kept, so that a new call far away does not change every
+     * window; calls outside of them are left out and their number printed,
+     * partitionedFormatting widens the bounds. Without partitions to update,
+     * they are produced from scratch.
+     * @param weather the weather data sorted by Date/Time
+     * @param policeCalls all of the crime data sorted by Date/Time
+     * @param newCalls the crime data added since the partitions were written
+     * @param saveFilePath the save directory
+     * @param rows number of grid rows
+     * @param cols number of grid columns
+     * @param spatialWeather if true, every line also holds the weather of each
+     * cell, see {@link #Formatting(WeatherReport[], PoliceCallTable, String, boolean)}
+     * @param layout layout of the counts
+     * @param pool pool the calls are counted and the partitions written in
+     * @return number of partitions written
+     * @throws IOException when a partition cannot be written
+     */
+    public static int updateFormatting(WeatherReport[] weather, PoliceCallTable policeCalls, PoliceCallTable newCalls, String saveFilePath, int rows, int cols, boolean spatialWeather, LAYOUT layout, ForkJoinPool pool) throws IOException {
+        File directory = partitionDirectory(saveFilePath, rows, cols, spatialWeather, layout);
+        String bounds = FormattedPartitions.readBounds(directory);
+        if (bounds == null) {
+            return partitionedFormatting(weather, policeCalls, saveFilePath, rows, cols, new int[] {rows}, new int[] {cols}, spatialWeather, layout, pool);
+        }
+        String[] values = bounds.trim().split(",");
+        minLat = Double.parseDouble(values[1]);
+        maxLat = Double.parseDouble(values[3]);
+        minLong = Double.parseDouble(values[5]);
+        maxLong = Double.parseDouble(values[7]);
+        // Windows holding new calls, widened to whole months
+        int first = weather.length;
+        int last = -1;
+        for (int row = 0; row < newCalls.size(); row++) {
+            int window = windowOf(weather, newCalls.getEpochMinute(row));
+            if (window >= 0) {
+                first = Math.min(first, window);
+                last = Math.max(last, window);
+            }
+        }
+        if (last < 0) {
+            System.out.println("Updated partitions: 0");
+            return 0;
+        }
+        YearMonth firstMonth = YearMonth.from(weather[first].getStartDateTime());
+        while (first > 0 && YearMonth.from(weather[first - 1].getStartDateTime()).equals(firstMonth)) {
+            first--;
+        }
+        YearMonth lastMonth = YearMonth.from(weather[last].getStartDateTime());
+        while (last + 1 < weather.length && YearMonth.from(weather[last + 1].getStartDateTime()).equals(lastMonth)) {
+            last++;
+        }
+        WeatherReport[] months = Arrays.copyOfRange(weather, first, last + 1);
+        // Calls of those months within the bounds
+        int from = policeCalls.lowerBound(months[0].getStartEpochMinute());
+        int to = policeCalls.lowerBound(months[months.length - 1].getEndEpochMinute());
+        int[] inside = new int[to - from];
+        int count = 0;
+        for (int row = from; row < to; row++) {
+            double latitude = policeCalls.getLatitude(row);
+            double longitude = policeCalls.getLongitude(row);
+            if (latitude >= minLat && latitude <= maxLat && longitude >= minLong && longitude <= maxLong) {
+                inside[count++] = row;
+            }
+        }
+        System.out.println("Calls outside the bounds: " + (to - from - count));
+        Grid grid = new Grid(rows, cols);
+        grid.setMaxLat(maxLat);
+        grid.setMinLat(minLat);
+        grid.setMinLong(minLong);
+        grid.setMaxLong(maxLong);
+        CountCube cube = new CountCube(months, grid, false);
+        cube.add(policeCalls.select(inside, count), pool);
+        StationWeights stationWeights = null;
+        if (spatialWeather) {
+            stationWeights = stationWeights(months, grid);
+        }
+        int written = new FormattedPartitions(directory, bounds, layout).update(months, cube, stationWeights, pool);
+        System.out.println("Updated partitions: " + written);
+        return written;
+    }
+
+    // Directory of the partitions of a formatted file
+    private static File partitionDirectory(String saveFilePath, int rows, int cols, boolean spatialWeather, LAYOUT layout) {
+        String path = formattedFile(saveFilePath, rows, cols, spatialWeather, layout).getPath();
+        return new File(path.substring(0, path.length() - ".csv".length()));
+    }
+
+    // Name of formatted file
+    private static File formattedFile(String saveFilePath, int rows, int cols, boolean spatialWeather, LAYOUT layout) {
+        String fileName = "Formatted_" + rows + "x" + cols + "_All_DataHigh" + (spatialWeather ? "_Spatial" : "")
+                + (layout == LAYOUT.SPARSE ? "_Sparse" : "") + ".csv";
+        return new File(saveFilePath + fileName);
+    }
+
+    // Index of the weather window holding epochMinute, or -1 if there is none
+    private static int windowOf(WeatherReport[] weather, long epochMinute) {
+        int low = 0;
+        int high = weather.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (weather[middle].getStartEpochMinute() <= epochMinute) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high >= 0 && epochMinute < weather[high].getEndEpochMinute() ? high : -1;
     }
 
     private static String boundstoCSV() {
@@ -140,17 +513,21 @@ public class DataFormatting {
     }
 
     public static void debugPrints(PoliceCall[] policeCalls) {
+        debugPrints(PoliceCallTable.of(policeCalls));
+    }
+
+    public static void debugPrints(PoliceCallTable policeCalls) {
         int sum = 0;
         boolean latZero = false;
         boolean longZero = false;
-        for (PoliceCall call : policeCalls) {
-            if (call.getSeverity() == -1) {
+        for (int row = 0; row < policeCalls.size(); row++) {
+            if (policeCalls.getSeverity(row) == -1) {
                 sum += 1;
             }
-            if (call.getLatitude() == 0.) {
+            if (policeCalls.getLatitude(row) == 0.) {
                 latZero = true;
             }
-            if (call.getLongitude() == 0.) {
+            if (policeCalls.getLongitude(row) == 0.) {
                 longZero = true;
             }
         }
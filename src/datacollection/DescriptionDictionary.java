@@ -0,0 +1,155 @@
+package datacollection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interns call descriptions (e.g. Private Tow, 911/NO  VOICE) to dense int
+ * ids. There are only a few hundred distinct descriptions, so a single copy of
+ * each is kept and calls refer to it by id.
+ *
+ * Ids are never removed, so an id stays valid for the lifetime of the
+ * dictionary. The dictionary is thread-safe.
+ *
+ * @author Benjamin Albert
+ */
+public class DescriptionDictionary {
+
+    private static final DescriptionDictionary GLOBAL = new DescriptionDictionary();
+
+    private final HashMap<String, Integer> ids;
+    private volatile String[] descriptions;
+    private int size;
+
+    public DescriptionDictionary() {
+        ids = new HashMap<>();
+        descriptions = new String[256];
+    }
+
+    /**
+     * @return the dictionary shared by every parsed table
+     */
+    public static DescriptionDictionary global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return id of description, adding it if it is new
+     */
+    public synchronized int intern(String description) {
+        Integer id = ids.get(description);
+        if (id == null) {
+            id = size;
+            String[] grown = size == descriptions.length ? Arrays.copyOf(descriptions, size * 2) : descriptions;
+            grown[id] = description;
+            ids.put(description, id);
+            size++;
+            descriptions = grown;
+        }
+        return id;
+    }
+
+    /**
+     * @return id of description or -1 if it has not been interned
+     */
+    public synchronized int find(String description) {
+        Integer id = ids.get(description);
+        return id == null ? -1 : id;
+    }
+
+    public String get(int id) {
+        return descriptions[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Per-thread front of the dictionary that maps raw description bytes to
+     * ids, so a description is only decoded to a String the first time the
+     * thread sees it.
+     */
+    public static class ByteCache {
+
+        private final DescriptionDictionary dictionary;
+        private final Charset charset;
+        private byte[][] keys;
+        private int[] values;
+        private int size;
+
+        public ByteCache(DescriptionDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.charset = Charset.defaultCharset();
+            this.keys = new byte[512][];
+            this.values = new int[512];
+        }
+
+        /**
+         * @return id of the description held in buffer[start, end)
+         */
+        public int intern(ByteBuffer buffer, int start, int end) {
+            int mask = keys.length - 1;
+            int slot = hash(buffer, start, end) & mask;
+            while (keys[slot] != null) {
+                if (matches(keys[slot], buffer, start, end)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            byte[] key = new byte[end - start];
+            for (int i = start; i < end; i++) {
+                key[i - start] = buffer.get(i);
+            }
+            int id = dictionary.intern(new String(key, charset));
+            keys[slot] = key;
+            values[slot] = id;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new int[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) {
+                    continue;
+                }
+                ByteBuffer key = ByteBuffer.wrap(oldKeys[i]);
+                int slot = hash(key, 0, oldKeys[i].length) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static int hash(ByteBuffer buffer, int start, int end) {
+            int hash = 0x811c9dc5;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ buffer.get(i)) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer buffer, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package datacollection;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A description white list and black list compiled to a bit set over
+ * {@link DescriptionDictionary} ids, so checking a call is a single bit test.
+ *
+ * @author Benjamin Albert
+ */
+public class DescriptionSet {
+
+    private final BitSet ids;
+    /* if true, ids holds the descriptions that do NOT pass */
+    private final boolean complement;
+
+    private DescriptionSet(BitSet ids, boolean complement) {
+        this.ids = ids;
+        this.complement = complement;
+    }
+
+    /**
+     * @param whiteList if not empty, only these descriptions pass
+     * @param blackList these descriptions never pass
+     * @param dictionary dictionary the ids belong to (listed descriptions are
+     * interned so that they keep their meaning for descriptions parsed later)
+     */
+    public static DescriptionSet compile(List<String> whiteList, List<String> blackList, DescriptionDictionary dictionary) {
+        BitSet ids = new BitSet();
+        if (whiteList.isEmpty()) {
+            for (String description : blackList) {
+                ids.set(dictionary.intern(description));
+            }
+            return new DescriptionSet(ids, true);
+        }
+        for (String description : whiteList) {
+            ids.set(dictionary.intern(description));
+        }
+        for (String description : blackList) {
+            ids.clear(dictionary.intern(description));
+        }
+        return new DescriptionSet(ids, false);
+    }
+
+    public boolean contains(int descriptionId) {
+        return ids.get(descriptionId) != complement;
+    }
+}
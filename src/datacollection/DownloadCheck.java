@@ -0,0 +1,205 @@
+package datacollection;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks {@link DataDownloader#downloadPoliceCalls(String, File, PoliceCall.Filter, boolean)}
+ * against a local stand-in for the crime data server that serves a fixture
+ * csv: a whole download, a resumed one (Range with If-Range), a file changed
+ * on the server before resuming, a partial file that is already whole (416),
+ * a partial file longer than the file on the server (416 of another length),
+ * a server that ignores Range and a server without validators.
+ *
+ * Run from the project directory, optionally with the fixture as argument.
+ * Prints a line per case and exits with status 1 if any case fails.
+ *
+ * @author Benjamin Albert
+ */
+public class DownloadCheck {
+
+    public static final String FIXTURE_FILE = Driver.WORKING_DIRECTORY + "src" + File.separator + "datacollection"
+            + File.separator + "download_check_crime_data.csv";
+
+    /* what the stand-in serves, changed between cases */
+    private volatile byte[] served;
+    private volatile String etag;
+    private volatile boolean honorRange = true;
+    /* bytes of the body sent before the connection is dropped, -1 for all */
+    private volatile int cutAt = -1;
+    private final ArrayList<String> requests = new ArrayList<>();
+    private boolean failed;
+
+    public static void main(String[] args) throws IOException {
+        byte[] fixture = Files.readAllBytes(new File(args.length > 0 ? args[0] : FIXTURE_FILE).toPath());
+        System.exit(new DownloadCheck().run(fixture) ? 0 : 1);
+    }
+
+    /**
+     * @return true if every case passed
+     */
+    public boolean run(byte[] fixture) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rows.csv", this::handle);
+        server.start();
+        File directory = Files.createTempDirectory("download_check").toFile();
+        File saveFile = new File(directory, "crime_data.csv");
+        File partFile = new File(saveFile.getPath() + ".part");
+        File validatorFile = new File(partFile.getPath() + ".validator");
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/rows.csv";
+        try {
+            served = fixture;
+            etag = "\"1\"";
+            check("whole download", url, saveFile, fixture, "null null");
+
+            interrupt(url, saveFile, fixture.length / 2);
+            check("resumed", url, saveFile, fixture, "bytes=" + (fixture.length / 2) + "- \"1\"");
+
+            interrupt(url, saveFile, fixture.length / 3);
+            byte[] changed = Arrays.copyOf(fixture, lastRecordEnd(fixture));
+            served = changed;
+            etag = "\"2\"";
+            check("changed on the server", url, saveFile, changed, "bytes=" + (fixture.length / 3) + "- \"1\"");
+
+            Files.write(partFile.toPath(), changed);
+            Files.write(validatorFile.toPath(), etag.getBytes());
+            check("partial file already whole", url, saveFile, changed, "bytes=" + changed.length + "- \"2\"");
+
+            Files.write(partFile.toPath(), fixture);
+            Files.write(validatorFile.toPath(), etag.getBytes());
+            check("partial file longer than the file", url, saveFile, changed, "bytes=" + fixture.length + "- \"2\", null null");
+
+            served = fixture;
+            interrupt(url, saveFile, fixture.length / 2);
+            honorRange = false;
+            check("range ignored", url, saveFile, fixture, "bytes=" + (fixture.length / 2) + "- \"2\"");
+
+            honorRange = true;
+            etag = null;
+            interrupt(url, saveFile, fixture.length / 2);
+            check("no validator", url, saveFile, fixture, "null null");
+        } finally {
+            server.stop(0);
+            for (File file : new File[]{saveFile, partFile, validatorFile, directory}) {
+                file.delete();
+            }
+        }
+        return !failed;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        synchronized (requests) {
+            requests.add(range + " " + ifRange);
+        }
+        byte[] body = served;
+        int from = 0;
+        if (etag != null) {
+            exchange.getResponseHeaders().add("ETag", etag);
+        }
+        if (range != null && honorRange && (ifRange == null || ifRange.equals(etag))) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            if (from >= body.length) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + (body.length - 1) + "/" + body.length);
+        }
+        exchange.sendResponseHeaders(from > 0 ? 206 : 200, body.length - from);
+        int end = cutAt >= 0 ? Math.max(from, Math.min(body.length, cutAt)) : body.length;
+        cutAt = -1;
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body, from, end - from);
+            out.flush();
+        } finally {
+            /* closing before the whole body is sent drops the connection */
+            exchange.close();
+        }
+    }
+
+    // A download that is dropped after cutAt bytes and leaves a partial file
+    private void interrupt(String url, File saveFile, int cutAt) {
+        this.cutAt = cutAt;
+        try {
+            DataDownloader.downloadPoliceCalls(url, saveFile, null, true);
+            report("interrupted at " + cutAt, false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Download once and compare the file and calls with expected and the
+     * Range and If-Range headers of the requests with expectedRequests.
+     */
+    private void check(String name, String url, File saveFile, byte[] expected, String expectedRequests) throws IOException {
+        synchronized (requests) {
+            requests.clear();
+        }
+        PoliceCallTable downloaded;
+        try {
+            downloaded = DataDownloader.downloadPoliceCalls(url, saveFile, null, true);
+        } catch (IOException e) {
+            report(name + ": " + e, false);
+            return;
+        }
+        File parsedFile = new File(saveFile.getPath() + ".expected");
+        Files.write(parsedFile.toPath(), expected);
+        PoliceCallTable parsed = new PoliceCallReader().readTable(parsedFile.getPath(), null);
+        parsedFile.delete();
+        String requestHeaders;
+        synchronized (requests) {
+            requestHeaders = String.join(", ", requests);
+        }
+        boolean passed = Arrays.equals(Files.readAllBytes(saveFile.toPath()), expected)
+                && same(downloaded, parsed)
+                && requestHeaders.equals(expectedRequests)
+                && !new File(saveFile.getPath() + ".part").exists();
+        report(name + " (" + downloaded.size() + " calls, requests: " + requestHeaders + ")", passed);
+    }
+
+    private void report(String name, boolean passed) {
+        System.out.println((passed ? "OK " : "FAILED ") + name);
+        failed |= !passed;
+    }
+
+    private static boolean same(PoliceCallTable a, PoliceCallTable b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int row = 0; row < a.size(); row++) {
+            if (a.getRecordId(row) != b.getRecordId(row) || a.getEpochMinute(row) != b.getEpochMinute(row)
+                    || Double.compare(a.getLatitude(row), b.getLatitude(row)) != 0
+                    || Double.compare(a.getLongitude(row), b.getLongitude(row)) != 0
+                    || a.getSeverity(row) != b.getSeverity(row)
+                    || !a.getDescription(row).equals(b.getDescription(row))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return length of data without its last record, which ends with a
+     * quote like every record
+     */
+    private static int lastRecordEnd(byte[] data) {
+        for (int i = data.length - 2; i > 1; i--) {
+            if (data[i] == '\n' && (data[i - 1] == '"' || (data[i - 1] == '\r' && data[i - 2] == '"'))) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -18,8 +18,15 @@ public class Driver {
 
     public static final String RAW_CRIME_FILE_NAME = "raw_crime_data.csv";
     public static final String FILTERED_CRIME_FILE_NAME = "filtered_crime_data.json";
+    public static final String CRIME_SNAPSHOT_FILE_NAME = "raw_crime_data.snapshot";
+    public static final String CRIME_WATERMARK_FILE_NAME = "raw_crime_data.watermark.json";
+    /* calls downloaded by refresh(), only those since the last refresh */
+    public static final String NEW_CRIME_FILE_NAME = "new_crime_data.csv";
+    /* calls ingested by refresh(), kept apart from CRIME_SNAPSHOT_FILE_NAME which readPoliceCallTable rebuilds */
+    public static final String INGESTED_CRIME_SNAPSHOT_FILE_NAME = "ingested_crime_data.snapshot";
 
     public static final String RAW_WEATHER_FILE_NAME = "raw_weather_data.csv";
+    public static final String WEATHER_SNAPSHOT_FILE_NAME = "raw_weather_data.snapshot";
 
     public static void main(String[] args) {
         try {
@@ -43,8 +50,9 @@ public class Driver {
             filter.setMaxLong(-76.533786);
             //filter = makeHighSeverityFilter();
 
-            PoliceCall[] policeCalls = readPoliceCalls(filter);
-            System.out.println(policeCalls.length);
+            //refresh(filter);
+            PoliceCallTable policeCalls = readPoliceCallTable(filter);
+            System.out.println(policeCalls.size());
             //System.out.println(debugFilter(policeCalls));
 
             StationReport[] stationReports = readStationReports();
@@ -52,18 +60,69 @@ public class Driver {
 //
             System.out.println("formatting data...");
             DataFormatting.Formatting(weatherReports, policeCalls, DATA_SAVE_DIR);
+            //DataFormatting.partitionedFormatting(weatherReports, policeCalls, DATA_SAVE_DIR);
 
-//            PoliceCall.write(policeCalls, DATA_SAVE_DIR + FILTERED_CRIME_FILE_NAME);
+//            PoliceCallJsonWriter.writeJson(policeCalls, DATA_SAVE_DIR + FILTERED_CRIME_FILE_NAME);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Download only the calls that are new since the last refresh, ingest
+     * them and update only the formatted windows they fall in.
+     */
+    public static void refresh(Filter filter) throws IOException {
+        downloadWeatherData();
+        IncrementalIngester ingester = new IncrementalIngester(DATA_SAVE_DIR + RAW_CRIME_FILE_NAME,
+                DATA_SAVE_DIR + INGESTED_CRIME_SNAPSHOT_FILE_NAME, DATA_SAVE_DIR + CRIME_WATERMARK_FILE_NAME);
+        long cutoff = ingester.cutoff();
+        PoliceCallTable downloaded = downloadPoliceCallTable(null, cutoff);
+        System.out.println("ingesting new crime data...");
+        IncrementalIngester.Ingestion ingestion = ingester.ingest(downloaded, cutoff);
+        PoliceCallTable policeCalls = ingestion.getAll();
+        PoliceCallTable newCalls = ingestion.getAdded();
+        if (filter != null) {
+            // the tables may not share a dictionary
+            policeCalls = filter.compile(policeCalls.getDictionary()).apply(policeCalls);
+            newCalls = filter.compile(newCalls.getDictionary()).apply(newCalls);
+        }
+        System.out.println(newCalls.size() + " new calls");
+        WeatherReport[] weatherReports = generateWeatherReports(readStationReports());
+        System.out.println("formatting data...");
+        DataFormatting.updateFormatting(weatherReports, policeCalls, newCalls, DATA_SAVE_DIR);
+    }
+
     public static void downloadCrimeData() throws IOException {
         System.out.println("downloading crime data (may take a few minutes)...");
         DataDownloader.download(DataDownloader.getCrimeDataURL(), new File(DATA_SAVE_DIR + RAW_CRIME_FILE_NAME));
     }
 
+    /**
+     * Download the crime data and parse it while it downloads, resuming an
+     * interrupted download if there is one.
+     */
+    public static PoliceCallTable downloadPoliceCallTable(Filter filter) throws IOException {
+        System.out.println("downloading and parsing crime data (may take a few minutes)...");
+        return DataDownloader.downloadPoliceCalls(DataDownloader.getCrimeDataURL(),
+                new File(DATA_SAVE_DIR + RAW_CRIME_FILE_NAME), filter, true);
+    }
+
+    /**
+     * Download only the calls at or after cutoff and parse them while they
+     * download, resuming an interrupted download if there is one.
+     * @param cutoff epoch minute, see {@link IncrementalIngester#cutoff()};
+     * Long.MIN_VALUE downloads every call
+     */
+    public static PoliceCallTable downloadPoliceCallTable(Filter filter, long cutoff) throws IOException {
+        if (cutoff == Long.MIN_VALUE) {
+            return downloadPoliceCallTable(filter);
+        }
+        System.out.println("downloading and parsing crime data since " + TimestampParser.toLocalDateTime(cutoff) + "...");
+        return DataDownloader.downloadPoliceCalls(DataDownloader.getCrimeDataURL(cutoff),
+                new File(DATA_SAVE_DIR + NEW_CRIME_FILE_NAME), filter, true);
+    }
+
     public static void downloadWeatherData() throws IOException {
         System.out.println("downloading weather data (may take a few minutes)...");
         DataDownloader.download(DataDownloader.getWeatherDataURL(), new File(DATA_SAVE_DIR + RAW_WEATHER_FILE_NAME));
@@ -99,9 +158,17 @@ public class Driver {
         return PoliceCall.readPoliceCalls(DATA_SAVE_DIR + RAW_CRIME_FILE_NAME, filter);
     }
 
+    public static PoliceCallTable readPoliceCallTable(Filter filter) throws IOException {
+        System.out.println("parsing crime data...");
+        PoliceCallTable table = SnapshotCache.readPoliceCallTable(DATA_SAVE_DIR + RAW_CRIME_FILE_NAME,
+                DATA_SAVE_DIR + CRIME_SNAPSHOT_FILE_NAME);
+        return filter == null ? table : filter.compile(table.getDictionary()).apply(table);
+    }
+
     public static StationReport[] readStationReports() throws IOException {
         System.out.println("parsing weather station data...");
-        return StationReport.readStationReports(DATA_SAVE_DIR + RAW_WEATHER_FILE_NAME);
+        return SnapshotCache.readStationReports(DATA_SAVE_DIR + RAW_WEATHER_FILE_NAME,
+                DATA_SAVE_DIR + WEATHER_SNAPSHOT_FILE_NAME);
     }
 
     public static WeatherReport[] generateWeatherReports(StationReport[] stationReports) {
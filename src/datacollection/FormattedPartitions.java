@@ -0,0 +1,366 @@
+package datacollection;
+
+import com.google.gson.Gson;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+/**
+ * A formatted file split by month into a directory of partitions. Partition
+ * yyyy-MM.csv starts with the bounds line and holds the lines of the windows
+ * with calls that start in that month, in the format of
+ * {@link DataFormatting#Formatting(WeatherReport[], PoliceCallTable, String, int, int, int[], int[], boolean, boolean, DataFormatting.LAYOUT)}.
+ * Next to it yyyy-MM.manifest.json records its number of lines, bytes and
+ * CRC32 and a hash of everything the partition was made from: the bounds, the
+ * counts and weather of its windows and the layout.
+ *
+ * Partitions are replaced, never appended to, so writing the same data twice
+ * leaves the same files. A partition whose csv and manifest are still in place
+ * and whose input hash did not change is left as it is, so when only recent
+ * windows change only their months are rewritten. Partitions that are written
+ * are formatted concurrently, each into a temporary file that then replaces
+ * the csv; its manifest is written last. Partitions of months that no longer
+ * have windows are deleted, as are temporary files left by a failed run.
+ * Only some months can be written too, see
+ * {@link #update(WeatherReport[], CountCube, StationWeights, ForkJoinPool)}.
+ *
+ * @author Benjamin Albert
+ */
+public class FormattedPartitions {
+
+    public static final String CSV_SUFFIX = ".csv";
+    public static final String MANIFEST_SUFFIX = ".manifest.json";
+    public static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /* part of the input hash, bump when the format of a line changes */
+    private static final int FORMAT_VERSION = 1;
+    private static final WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD[] FIELDS = {
+        WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT,
+        WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES,
+        WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY
+    };
+
+    private final File directory;
+    private final String bounds;
+    private final DataFormatting.LAYOUT layout;
+
+    /**
+     * @param directory directory of the partitions, created if it does not
+     * exist
+     * @param bounds bounds line every partition starts with
+     * @param layout layout of the counts
+     */
+    public FormattedPartitions(File directory, String bounds, DataFormatting.LAYOUT layout) {
+        this.directory = directory;
+        this.bounds = bounds;
+        this.layout = layout;
+    }
+
+    /**
+     * Write every partition whose input changed.
+     * @param weather the weather data the cube was made from
+     * @param cube the counts
+     * @param stationWeights weights for the geometry of the cube to write the
+     * weather of every cell, or null
+     * @param pool pool the partitions are written in
+     * @return number of partitions written
+     * @throws IOException when a partition cannot be written
+     */
+    public int write(WeatherReport[] weather, CountCube cube, StationWeights stationWeights, ForkJoinPool pool) throws IOException {
+        HashSet<String> partitions = new HashSet<>();
+        int written = writeMonths(weather, cube, stationWeights, pool, partitions);
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            // a csv whose manifest was deleted by a failed run is found by its own name
+            if (name.endsWith(TEMPORARY_SUFFIX)
+                    || name.endsWith(MANIFEST_SUFFIX) && !partitions.contains(name.substring(0, name.length() - MANIFEST_SUFFIX.length()))
+                    || name.endsWith(CSV_SUFFIX) && !partitions.contains(name.substring(0, name.length() - CSV_SUFFIX.length()))) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Write the partitions of the months of weather whose input changed and
+     * leave every other partition as it is. The first and last month of
+     * weather must be whole, since a partition is written from the windows
+     * of its month that weather holds.
+     * @param weather the weather data the cube was made from, whole months
+     * @param cube the counts
+     * @param stationWeights weights for the geometry of the cube to write the
+     * weather of every cell, or null
+     * @param pool pool the partitions are written in
+     * @return number of partitions written
+     * @throws IOException when a partition cannot be written
+     */
+    public int update(WeatherReport[] weather, CountCube cube, StationWeights stationWeights, ForkJoinPool pool) throws IOException {
+        return writeMonths(weather, cube, stationWeights, pool, new HashSet<>());
+    }
+
+    /**
+     * @return the bounds line of the partitions in directory, or null if
+     * there are none
+     * @throws IOException
+     */
+    public static String readBounds(File directory) throws IOException {
+        File[] manifests = directory.listFiles((dir, name) -> name.endsWith(MANIFEST_SUFFIX));
+        for (File manifest : manifests == null ? new File[0] : manifests) {
+            String name = manifest.getName();
+            File csv = new File(directory, name.substring(0, name.length() - MANIFEST_SUFFIX.length()) + CSV_SUFFIX);
+            if (csv.exists()) {
+                try (BufferedReader bufferedReader = Files.newBufferedReader(csv.toPath(), StandardCharsets.UTF_8)) {
+                    String line = bufferedReader.readLine();
+                    if (line != null) {
+                        return line + "\n";
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write every month of weather whose input changed.
+     * @param partitions every month of weather is added to it
+     * @return number of partitions written
+     */
+    private int writeMonths(WeatherReport[] weather, CountCube cube, StationWeights stationWeights, ForkJoinPool pool,
+            HashSet<String> partitions) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        ArrayList<ForkJoinTask<Manifest>> running = new ArrayList<>();
+        // windows are sorted, so every month is a range of windows
+        for (int from = 0, to; from < weather.length; from = to) {
+            YearMonth month = YearMonth.from(weather[from].getStartDateTime());
+            to = from + 1;
+            while (to < weather.length && YearMonth.from(weather[to].getStartDateTime()).equals(month)) {
+                to++;
+            }
+            String partition = month.toString();
+            partitions.add(partition);
+            long inputHash = inputHash(weather, cube, stationWeights, from, to);
+            Manifest manifest = Manifest.read(manifestFile(partition));
+            if (manifest != null && manifest.inputHash == inputHash && csvFile(partition).length() == manifest.bytes) {
+                continue;
+            }
+            int first = from;
+            int last = to;
+            running.add(pool.submit(() -> writePartition(partition, weather, cube, stationWeights, first, last, inputHash)));
+        }
+        for (ForkJoinTask<Manifest> task : running) {
+            Manifest manifest;
+            try {
+                manifest = task.join();
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+            manifest.write(manifestFile(manifest.partition));
+        }
+        return running.size();
+    }
+
+    /**
+     * Format windows [from, to) into the csv of partition.
+     * @return manifest of the csv, not yet written
+     */
+    private Manifest writePartition(String partition, WeatherReport[] weather, CountCube cube, StationWeights stationWeights,
+            int from, int to, long inputHash) throws IOException {
+        // a csv without a manifest is never taken as up to date
+        Files.deleteIfExists(manifestFile(partition).toPath());
+        File temporary = new File(directory, partition + CSV_SUFFIX + TEMPORARY_SUFFIX);
+        ChecksumChannel channel = new ChecksumChannel(FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        Manifest manifest = new Manifest();
+        try (CSVWriter csvWriter = new CSVWriter(channel)) {
+            csvWriter.write(bounds);
+            CSVBuilder csvBuilder = new CSVBuilder(csvWriter);
+            for (int i = from; i < to; i++) {
+                if (cube.getCalls(i) > 0) {
+                    QuarterDayData quarter = new QuarterDayData(cube, i, weather[i], stationWeights);
+                    if (layout == DataFormatting.LAYOUT.SPARSE) {
+                        quarter.writeSparse(csvBuilder);
+                    } else {
+                        quarter.write(csvBuilder);
+                    }
+                    manifest.lines++;
+                }
+            }
+        }
+        Files.move(temporary.toPath(), csvFile(partition).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        manifest.partition = partition;
+        manifest.bytes = channel.bytes;
+        manifest.checksum = channel.crc.getValue();
+        manifest.inputHash = inputHash;
+        return manifest;
+    }
+
+    /**
+     * CRC32 of everything the lines of windows [from, to) are made from.
+     */
+    private long inputHash(WeatherReport[] weather, CountCube cube, StationWeights stationWeights, int from, int to) {
+        CRC32 crc = new CRC32();
+        ByteBuffer scratch = ByteBuffer.allocate(1 << 12);
+        scratch.putInt(FORMAT_VERSION).putInt(layout.ordinal()).putInt(cube.getRows()).putInt(cube.getCols());
+        byte[] boundsBytes = bounds.getBytes(StandardCharsets.UTF_8);
+        crc.update(boundsBytes, 0, boundsBytes.length);
+        for (int i = from; i < to; i++) {
+            if (cube.getCalls(i) == 0) {
+                continue;
+            }
+            scratch.putLong(weather[i].getStartEpochMinute()).putLong(weather[i].getEndEpochMinute());
+            for (WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD field : FIELDS) {
+                scratch.putDouble(weather[i].getValue(field));
+            }
+            if (stationWeights != null) {
+                StationLocations stations = weather[i].getStationLocations();
+                for (int station = 0; station < stations.size(); station++) {
+                    if (scratch.remaining() < (FIELDS.length + 2) * Double.BYTES) {
+                        digest(crc, scratch);
+                    }
+                    scratch.putDouble(stations.getLatitude(station)).putDouble(stations.getLongitude(station));
+                    for (WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD field : FIELDS) {
+                        scratch.putDouble(weather[i].getStationValue(station, field));
+                    }
+                }
+            }
+            digest(crc, scratch);
+            // the non-zero counts determine every count of the window
+            IntBuffer counts = cube.getWindow(i);
+            for (int j : cube.getNonZeroIndices(i)) {
+                if (scratch.remaining() < 2 * Integer.BYTES) {
+                    digest(crc, scratch);
+                }
+                scratch.putInt(j).putInt(counts.get(j));
+            }
+        }
+        digest(crc, scratch);
+        return crc.getValue();
+    }
+
+    private static void digest(CRC32 crc, ByteBuffer scratch) {
+        crc.update(scratch.array(), 0, scratch.position());
+        scratch.clear();
+    }
+
+    public File csvFile(String partition) {
+        return new File(directory, partition + CSV_SUFFIX);
+    }
+
+    public File manifestFile(String partition) {
+        return new File(directory, partition + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * What a partition holds, persisted as json next to it.
+     */
+    public static class Manifest {
+
+        private String partition;
+        private int lines;
+        private long bytes;
+        private long checksum;
+        private long inputHash;
+
+        /**
+         * @return the manifest stored in manifestFile or null if there is
+         * none or it cannot be read
+         */
+        public static Manifest read(File manifestFile) {
+            if (!manifestFile.exists()) {
+                return null;
+            }
+            try {
+                return new Gson().fromJson(new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8), Manifest.class);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("ignoring unreadable manifest " + manifestFile + ": " + e);
+                return null;
+            }
+        }
+
+        public void write(File manifestFile) throws IOException {
+            BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(manifestFile));
+            bufferedWriter.write(new Gson().toJson(this));
+            bufferedWriter.flush();
+            bufferedWriter.close();
+        }
+
+        /** @return the month of the partition, yyyy-MM */
+        public String getPartition() {
+            return partition;
+        }
+
+        /** @return number of window lines, the bounds line not included */
+        public int getLines() {
+            return lines;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return CRC32 of the whole csv */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public long getInputHash() {
+            return inputHash;
+        }
+    }
+
+    /**
+     * Counts and checksums the bytes written through it.
+     */
+    private static class ChecksumChannel implements WritableByteChannel {
+
+        private final WritableByteChannel channel;
+        private final CRC32 crc = new CRC32();
+        private long bytes;
+
+        ChecksumChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int position = source.position();
+            int written = channel.write(source);
+            // CSVWriter only writes heap buffers
+            crc.update(source.array(), source.arrayOffset() + position, written);
+            bytes += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
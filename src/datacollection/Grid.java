@@ -4,50 +4,100 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 
 /** Grid Object class.
+ *  Calls are counted per cell and severity as they are inserted, into one
+ *  flat array indexed by (row * cBins + col) * SEVERITIES + severity.
+ *  Keeping the calls of every cell is optional.
  * @author Jessica Su
  */
 public class Grid {
+    /** Number of severity levels (0 to 4). */
+    public static final int SEVERITIES = 5;
+    /** Default number of row and column bins. */
+    public static final int DEFAULT_BINS = 15;
+
     private double minLat;
     private double maxLat;
     private double minLong;
     private double maxLong;
-    private final int rBins = 15;
-    private final int cBins = 15;
+    private final int rBins;
+    private final int cBins;
     private LocalDateTime dateTime;
 
-    private ArrayList<PoliceCall>[][] ra;
-    private int[][][] sums;
+    // bins per degree, so binning multiplies instead of dividing
+    private double rowsPerLat;
+    private double colsPerLong;
+
+    private final boolean keepCalls;
+    private ArrayList<PoliceCall>[] ra;
+    private final int[] counts;
 
     /** Grid Constructor Used to set Default Min/Max
      *  Min set to max possible for comparison purposes.
+     *  The grid is 15x15 and keeps the calls of every cell.
      */
     public Grid() {
+        this(DEFAULT_BINS, DEFAULT_BINS, true);
+    }
+
+    /** Grid that only counts calls.
+     * @param rBins number of rows
+     * @param cBins number of columns
+     */
+    public Grid(int rBins, int cBins) {
+        this(rBins, cBins, false);
+    }
+
+    /** Grid Constructor.
+     * @param rBins number of rows
+     * @param cBins number of columns
+     * @param keepCalls if true, inserted PoliceCall objects are kept per cell
+     */
+    @SuppressWarnings("unchecked")
+    public Grid(int rBins, int cBins, boolean keepCalls) {
+        if (rBins <= 0 || cBins <= 0) {
+            throw new IllegalArgumentException("Bins must be positive: " + rBins + "x" + cBins);
+        }
+        this.rBins = rBins;
+        this.cBins = cBins;
+        this.keepCalls = keepCalls;
         minLat = 100.;
         maxLat = 0.;
         minLong = 200.;
         maxLong = 0.;
-        ra = new ArrayList[this.rBins][this.cBins];
-        sums = new int[this.rBins][this.cBins][5];
+        updateScales();
+        if (keepCalls) {
+            ra = new ArrayList[rBins * cBins];
+        }
+        counts = new int[rBins * cBins * SEVERITIES];
     }
 
     /** Set Maximum Latitude. */
     public void setMaxLat(double lat) {
         this.maxLat = lat;
+        updateScales();
     }
 
     /** Set Minimum Latitude. */
     public void setMinLat(double lat) {
         this.minLat = lat;
+        updateScales();
     }
 
     /** Set Maximum Longitude. */
     public void setMaxLong(double lon) {
         this.maxLong = lon;
+        updateScales();
     }
 
     /** Set Minimum Longitude. */
     public void setMinLong(double lon) {
         this.minLong = lon;
+        updateScales();
+    }
+
+    private void updateScales() {
+        this.rowsPerLat = this.rBins / (this.maxLat - this.minLat);
+        this.colsPerLong = this.cBins / (this.maxLong - this.minLong);
     }
 
     /** Set Date and Time. */
@@ -94,17 +144,51 @@ public class Grid {
      * @param call to be inserted
      */
     public void insertCall(PoliceCall call) {
-        if (this.ra == null) {
-            throw new IllegalArgumentException("Bins haven't been set");
-        }
         int rows = rowsCalc(call.getLatitude());
         int col = colCalc(call.getLongitude());
-        // Create a list if no list exists
-        if (this.ra[rows][col] == null) {
-            this.ra[rows][col] = new ArrayList<>();
+        count(rows, col, call.getSeverity());
+        if (this.keepCalls) {
+            int cell = rows * this.cBins + col;
+            // Create a list if no list exists
+            if (this.ra[cell] == null) {
+                this.ra[cell] = new ArrayList<>();
+            }
+            // Add the call to the list
+            this.ra[cell].add(call);
+        }
+    }
+
+    /** Count a row of a police call table in the grid.
+     *  The call is counted right away instead of being kept in a list.
+     * @param table the calls
+     * @param row the row of the call to be counted
+     */
+    public void insertCall(PoliceCallTable table, int row) {
+        count(rowsCalc(table.getLatitude(row)), colCalc(table.getLongitude(row)), table.getSeverity(row));
+    }
+
+    // Calls of unknown severity (-1) are not counted
+    private void count(int rows, int col, int sev) {
+        if (sev != -1) {
+            if (rows < 0 || rows >= this.rBins || col < 0 || col >= this.cBins || sev < 0 || sev >= SEVERITIES) {
+                throw new ArrayIndexOutOfBoundsException("cell " + rows + "," + col + " severity " + sev);
+            }
+            this.counts[(rows * this.cBins + col) * SEVERITIES + sev] += 1;
+        }
+    }
+
+    /** Calculate the box that a location belongs to.
+     * @param lat the latitude
+     * @param lon the longitude
+     * @return the box, row * cBins + col
+     */
+    int boxOf(double lat, double lon) {
+        int rows = rowsCalc(lat);
+        int col = colCalc(lon);
+        if (rows < 0 || rows >= this.rBins || col < 0 || col >= this.cBins) {
+            throw new ArrayIndexOutOfBoundsException("cell " + rows + "," + col);
         }
-        // Add the call to the list
-        this.ra[rows][col].add(call);
+        return rows * this.cBins + col;
     }
 
     /** Calculate the row that the call at lat belongs to.
@@ -122,8 +206,7 @@ public class Grid {
         }
         // otherwise calculate the row
         else {
-            double latInc = (this.maxLat - this.minLat) / this.rBins;
-            int x = (int) Math.floor((lat - this.minLat) / latInc);
+            int x = bin(lat - this.minLat, this.rowsPerLat, (this.maxLat - this.minLat) / this.rBins);
             // latitude increases bottom up so rows must be reversed
             return this.rBins - x - 1;
         }
@@ -144,36 +227,93 @@ public class Grid {
         }
         // otherwise calculate the column
         else {
-            double longInc = (this.maxLong - this.minLong) / this.cBins;
-            return (int) Math.floor((lon - this.minLong) / longInc);
+            return bin(lon - this.minLong, this.colsPerLong, (this.maxLong - this.minLong) / this.cBins);
+        }
+    }
+
+    /** Calculate floor(offset / increment) using the reciprocal of the
+     *  increment. The product can round differently than the quotient only
+     *  right at a bin edge, where the quotient is used instead.
+     */
+    private static int bin(double offset, double binsPerUnit, double increment) {
+        double bins = offset * binsPerUnit;
+        double nearest = Math.rint(bins);
+        if (Math.abs(bins - nearest) <= 1e-9 * Math.max(1, Math.abs(nearest))) {
+            return (int) Math.floor(offset / increment);
         }
+        return (int) Math.floor(bins);
     }
 
     /** Return the list of police calls at a certain box.
      * @param row the row
      * @param col the column
-     * @return the list of calls
+     * @return the list of calls, null if there are none or calls are not kept
      */
     public ArrayList<PoliceCall> getCallsPerBox(int row, int col) {
-        return this.ra[row][col];
+        return this.keepCalls ? this.ra[row * this.cBins + col] : null;
+    }
+
+    /** Return the number of calls of a severity in a box.
+     * @param row the row
+     * @param col the column
+     * @param sev the severity
+     * @return the count
+     */
+    public int getCount(int row, int col, int sev) {
+        return this.counts[(row * this.cBins + col) * SEVERITIES + sev];
+    }
+
+    /** Return the counts of every box and severity.
+     * @return the flat array indexed by (row * cBins + col) * SEVERITIES + sev
+     */
+    public int[] getCounts() {
+        return this.counts;
+    }
+
+    /** Sum the counts into a coarser grid with the same bounds and date.
+     *  Every box of the coarser grid covers a block of whole boxes of this
+     *  grid, so the number of rows and columns must divide those of this grid.
+     * @param rows number of rows of the coarser grid
+     * @param cols number of columns of the coarser grid
+     * @return a grid that only counts calls
+     */
+    public Grid coarsen(int rows, int cols) {
+        if (rows <= 0 || cols <= 0 || this.rBins % rows != 0 || this.cBins % cols != 0) {
+            throw new IllegalArgumentException(rows + "x" + cols + " does not divide " + this.rBins + "x" + this.cBins);
+        }
+        Grid coarse = new Grid(rows, cols);
+        coarse.setMaxLat(this.maxLat);
+        coarse.setMinLat(this.minLat);
+        coarse.setMinLong(this.minLong);
+        coarse.setMaxLong(this.maxLong);
+        coarse.setDateTime(this.dateTime);
+        int rowsPerBox = this.rBins / rows;
+        int colsPerBox = this.cBins / cols;
+        int fine = 0;
+        for (int i = 0; i < this.rBins; i++) {
+            int rowOffset = (i / rowsPerBox) * cols;
+            for (int j = 0; j < this.cBins; j++) {
+                int box = (rowOffset + j / colsPerBox) * SEVERITIES;
+                for (int k = 0; k < SEVERITIES; k++) {
+                    coarse.counts[box + k] += this.counts[fine++];
+                }
+            }
+        }
+        return coarse;
     }
 
     /** Calculate the total occurrences of each severity.
      * @return the 3D array of sums
      */
     public int[][][] calcSeverities() {
+        int[][][] sums = new int[this.rBins][this.cBins][SEVERITIES];
         for (int i = 0; i < this.rBins; i++) {
             for (int j = 0; j < this.cBins; j++) {
-                if (this.ra[i][j] != null) {
-                    for (PoliceCall call : this.ra[i][j]) {
-                        int sev = call.getSeverity();
-                        if (sev != -1) {
-                            this.sums[i][j][sev] += 1;
-                        }
-                    }
+                for (int k = 0; k < SEVERITIES; k++) {
+                    sums[i][j][k] = getCount(i, j, k);
                 }
             }
         }
-        return this.sums;
+        return sums;
     }
 }
@@ -0,0 +1,199 @@
+package datacollection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * Merges newly downloaded crime data into the calls ingested by earlier runs
+ * instead of parsing the whole history again.
+ *
+ * Earlier calls come from the snapshot of the previous run and a
+ * {@link Watermark} records how far that run got. Only the calls since then
+ * need to be downloaded: {@link #cutoff()} is the date and time of the latest
+ * call ingested, and {@link #ingest(PoliceCallTable, long)} merges the calls
+ * downloaded from there on, without reading any csv.
+ *
+ * A whole csv can be ingested with {@link #ingest()} instead. If the csv only
+ * grew since the last run, only the appended bytes are parsed. Otherwise the
+ * whole file is scanned, but every record at or below the watermark record id
+ * is dropped as soon as its id is read. Either way only calls above the
+ * watermark are added, and the snapshot and watermark are rewritten for the
+ * next run.
+ *
+ * The snapshot must belong to the ingester alone: a snapshot rewritten by
+ * someone else, e.g. {@link SnapshotCache#readPoliceCallTable(String, String)},
+ * may already hold calls above the watermark. Calls at or below the largest
+ * record id of the snapshot are therefore never added again, and a snapshot
+ * that is behind the watermark is rebuilt from the whole csv.
+ *
+ * @author Benjamin Albert
+ */
+public class IncrementalIngester {
+
+    /* fingerprint of a snapshot of downloaded calls, which no csv matches */
+    private static final SnapshotCache.Fingerprint NOT_FROM_CSV = new SnapshotCache.Fingerprint(-1, 0, 0);
+
+    private final String crimeDataFile;
+    private final String snapshotFile;
+    private final String watermarkFile;
+    private final PoliceCallReader reader;
+
+    public IncrementalIngester(String crimeDataFile, String snapshotFile, String watermarkFile) {
+        this(crimeDataFile, snapshotFile, watermarkFile, new PoliceCallReader());
+    }
+
+    public IncrementalIngester(String crimeDataFile, String snapshotFile, String watermarkFile, PoliceCallReader reader) {
+        this.crimeDataFile = crimeDataFile;
+        this.snapshotFile = snapshotFile;
+        this.watermarkFile = watermarkFile;
+        this.reader = reader;
+    }
+
+    /**
+     * @return every call ingested so far together with the calls this run
+     * added
+     * @throws IOException
+     */
+    public Ingestion ingest() throws IOException {
+        Watermark watermark = Watermark.read(watermarkFile);
+        PoliceCallTable previous = watermark == null ? null : readPrevious(watermark);
+        SnapshotCache.Fingerprint fingerprint = SnapshotCache.Fingerprint.of(new File(crimeDataFile));
+        if (previous == null) {
+            PoliceCallTable all = reader.readTable(crimeDataFile, null);
+            save(all, fingerprint);
+            return new Ingestion(all, all, true);
+        }
+        long fromOffset = watermark.isPrefixOf(crimeDataFile) ? watermark.getByteOffset() : 0;
+        long minRecordId = Math.max(watermark.getRecordId(), previous.maxRecordId());
+        PoliceCallTable added = reader.readTable(crimeDataFile, null, fromOffset, minRecordId);
+        PoliceCallTable all = previous.merge(added);
+        save(all, fingerprint);
+        return new Ingestion(all, added, false);
+    }
+
+    /**
+     * @return the date and time, in epoch minutes, from which on calls must
+     * be downloaded for {@link #ingest(PoliceCallTable, long)}, i.e. that of
+     * the latest call ingested so far, or Long.MIN_VALUE if nothing has been
+     * ingested and the whole history is needed
+     * @throws IOException
+     */
+    public long cutoff() throws IOException {
+        Watermark watermark = Watermark.read(watermarkFile);
+        return watermark == null || !new File(snapshotFile).exists() ? Long.MIN_VALUE : watermark.getEpochMinute();
+    }
+
+    /**
+     * Merge the calls downloaded since {@link #cutoff()}, e.g. from
+     * {@link DataDownloader#getCrimeDataURL(long)}. Calls of the cutoff
+     * minute itself may have been ingested before and are only added if
+     * their record id is new.
+     *
+     * @param downloaded every call at or after cutoff, sorted by date and
+     * time
+     * @param cutoff the cutoff the calls were downloaded for
+     * @return every call ingested so far together with the calls this run
+     * added
+     * @throws IOException if the snapshot no longer holds the calls before
+     * cutoff, in which case the whole history must be downloaded
+     */
+    public Ingestion ingest(PoliceCallTable downloaded, long cutoff) throws IOException {
+        if (cutoff == Long.MIN_VALUE) {
+            save(downloaded);
+            return new Ingestion(downloaded, downloaded, true);
+        }
+        Watermark watermark = Watermark.read(watermarkFile);
+        PoliceCallTable previous = watermark == null ? null : readPrevious(watermark);
+        if (previous == null || watermark.getEpochMinute() != cutoff) {
+            throw new IOException("snapshot " + snapshotFile + " does not hold the calls before "
+                    + TimestampParser.toLocalDateTime(cutoff) + ", download the whole history");
+        }
+        HashSet<Long> known = new HashSet<>();
+        for (int row = previous.lowerBound(cutoff); row < previous.size(); row++) {
+            known.add(previous.getRecordId(row));
+        }
+        int[] rows = new int[downloaded.size()];
+        int count = 0;
+        for (int row = downloaded.lowerBound(cutoff); row < downloaded.size(); row++) {
+            if (!known.contains(downloaded.getRecordId(row))) {
+                rows[count++] = row;
+            }
+        }
+        PoliceCallTable added = downloaded.select(rows, count);
+        PoliceCallTable all = previous.merge(added);
+        save(all);
+        return new Ingestion(all, added, false);
+    }
+
+    /**
+     * @return the snapshot of the previous run, or null if it is unreadable
+     * or does not hold every call up to the watermark
+     */
+    private PoliceCallTable readPrevious(Watermark watermark) {
+        if (!new File(snapshotFile).exists()) {
+            return null;
+        }
+        PoliceCallTable previous;
+        try {
+            previous = SnapshotCache.readPoliceCallSnapshot(new File(snapshotFile), null);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ignoring unreadable snapshot " + snapshotFile + ": " + e);
+            return null;
+        }
+        if (previous != null && previous.maxRecordId() < watermark.getRecordId()) {
+            System.err.println("snapshot " + snapshotFile + " is behind its watermark, rebuilding it");
+            return null;
+        }
+        return previous;
+    }
+
+    private void save(PoliceCallTable all, SnapshotCache.Fingerprint fingerprint) throws IOException {
+        SnapshotCache.writePoliceCallSnapshot(all, new File(snapshotFile), fingerprint);
+        Watermark.of(all, crimeDataFile).write(watermarkFile);
+    }
+
+    // Calls that were downloaded rather than read from crimeDataFile
+    private void save(PoliceCallTable all) throws IOException {
+        SnapshotCache.writePoliceCallSnapshot(all, new File(snapshotFile), NOT_FROM_CSV);
+        Watermark.of(all).write(watermarkFile);
+    }
+
+    /**
+     * Outcome of one ingestion run.
+     */
+    public static class Ingestion {
+
+        private final PoliceCallTable all;
+        private final PoliceCallTable added;
+        private final boolean full;
+
+        public Ingestion(PoliceCallTable all, PoliceCallTable added, boolean full) {
+            this.all = all;
+            this.added = added;
+            this.full = full;
+        }
+
+        /**
+         * @return every call ingested so far, sorted by date and time
+         */
+        public PoliceCallTable getAll() {
+            return all;
+        }
+
+        /**
+         * @return the calls this run added, sorted by date and time
+         */
+        public PoliceCallTable getAdded() {
+            return added;
+        }
+
+        /**
+         * @return true if there was nothing to build on and the whole file
+         * was read
+         */
+        public boolean isFull() {
+            return full;
+        }
+    }
+}
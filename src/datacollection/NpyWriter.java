@@ -0,0 +1,135 @@
+package datacollection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes an array in the NumPy .npy format (version 1.0): a short text
+ * header giving the element type and shape, then the elements in row-major
+ * order, little-endian. The header is padded to 64 bytes so the elements are
+ * aligned, and numpy.load(file, mmap_mode='r') maps the file instead of
+ * reading it.
+ *
+ * Elements are put one at a time or in bulk into a direct buffer that is
+ * flushed to the file whenever it fills up. Closing the writer fails if the
+ * number of elements put does not match the shape.
+ *
+ * @author Benjamin Albert
+ */
+public class NpyWriter implements Closeable {
+
+    public static final String INT32 = "<i4";
+    public static final String INT64 = "<i8";
+    public static final String FLOAT64 = "<f8";
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0};
+    private static final int HEADER_ALIGNMENT = 64;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long elementBytes;
+    private final long expectedBytes;
+    private long writtenBytes;
+
+    /**
+     * @param file file to write, replaced if it exists
+     * @param descr element type, e.g. INT32
+     * @param shape length of every dimension
+     * @throws IOException
+     */
+    public NpyWriter(String file, String descr, long... shape) throws IOException {
+        this.elementBytes = Integer.parseInt(descr.substring(2));
+        long elements = 1;
+        StringBuilder shapeText = new StringBuilder("(");
+        for (long length : shape) {
+            elements *= length;
+            shapeText.append(length).append(", ");
+        }
+        /* a tuple of one is written (n,) */
+        if (shape.length > 0) {
+            shapeText.setLength(shapeText.length() - (shape.length == 1 ? 1 : 2));
+        }
+        shapeText.append(')');
+        this.expectedBytes = elements * elementBytes;
+        String dictionary = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': " + shapeText + ", }";
+        int headerLength = MAGIC.length + 2 + dictionary.length() + 1;
+        int padding = (HEADER_ALIGNMENT - headerLength % HEADER_ALIGNMENT) % HEADER_ALIGNMENT;
+        StringBuilder header = new StringBuilder(dictionary);
+        for (int i = 0; i < padding; i++) {
+            header.append(' ');
+        }
+        header.append('\n');
+        this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putShort((short) header.length());
+        buffer.put(header.toString().getBytes(StandardCharsets.US_ASCII));
+        /* the header does not count towards the elements */
+        this.writtenBytes = -buffer.position();
+    }
+
+    public void putInt(int value) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    public void putLong(long value) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(value);
+    }
+
+    public void putDouble(double value) throws IOException {
+        ensure(Double.BYTES);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Put the remaining ints of values, e.g. a window of a {@link CountCube}.
+     */
+    public void putInts(IntBuffer values) throws IOException {
+        IntBuffer source = values.duplicate();
+        while (source.hasRemaining()) {
+            ensure(Integer.BYTES);
+            int count = Math.min(source.remaining(), buffer.remaining() / Integer.BYTES);
+            IntBuffer target = buffer.asIntBuffer();
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            target.put(source);
+            source.limit(limit);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writtenBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        channel.close();
+        if (writtenBytes != expectedBytes) {
+            throw new IOException(writtenBytes / elementBytes + " elements written for " + expectedBytes / elementBytes);
+        }
+    }
+}
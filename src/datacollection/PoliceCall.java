@@ -1,17 +1,11 @@
 package datacollection;
 
-import com.google.gson.Gson;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 
 /**
@@ -19,15 +13,24 @@ import java.util.Comparator;
  */
 public class PoliceCall {
 
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("MM/dd/yyyy hh:mm:ss a");
-    
-    public static final Comparator<PoliceCall> DATE_TIME_COMPARATOR = (PoliceCall p1, PoliceCall p2) -> p1.datetime.compareTo(p2.datetime);
+    public static final Comparator<PoliceCall> DATE_TIME_COMPARATOR = (PoliceCall p1, PoliceCall p2) -> Long.compare(p1.epochMinute, p2.epochMinute);
     public static final Comparator<PoliceCall> SEVERITY_COMPARATOR = (PoliceCall p1, PoliceCall p2) -> Integer.compare(p1.severity, p2.severity);
     public static final Comparator<PoliceCall> LATITUDE_COMPARATOR = (PoliceCall p1, PoliceCall p2) -> Double.compare(p1.latitude, p2.latitude);
     public static final Comparator<PoliceCall> LONGITUDE_COMPARATOR = (PoliceCall p1, PoliceCall p2) -> Double.compare(p1.longitude, p2.longitude);
 
+    /* indexed by severity level, see severity(String) */
+    static final byte[][] SEVERITY_NAMES = {
+        "Non-Emergency".getBytes(StandardCharsets.US_ASCII),
+        "Low".getBytes(StandardCharsets.US_ASCII),
+        "Medium".getBytes(StandardCharsets.US_ASCII),
+        "High".getBytes(StandardCharsets.US_ASCII),
+        "Emergency".getBytes(StandardCharsets.US_ASCII)
+    };
+
     private String recordId;
     private LocalDateTime datetime;
+    /* datetime in minutes since 1970-01-01T00:00, see TimestampParser */
+    private long epochMinute;
     private String address;
     private String description;
     private int severity;
@@ -45,6 +48,9 @@ public class PoliceCall {
         private ArrayList<String> descriptionBlacklist;
         private LocalDateTime startDate;
         private LocalDateTime endDate;
+        /* startDate and endDate as epoch minutes: start < call < end */
+        private long startMinute;
+        private long endMinute;
         private boolean requireCoordinate;
         private double minLat;
         private double maxLat;
@@ -56,8 +62,8 @@ public class PoliceCall {
             descriptionWhiteList = new ArrayList<>();
             descriptionBlacklist = new ArrayList<>();
             severities.addAll(Arrays.asList(new Integer[]{0, 1, 2, 3, 4}));
-            startDate = LocalDateTime.MIN;
-            endDate = LocalDateTime.MAX;
+            setStartDate(LocalDateTime.MIN);
+            setEndDate(LocalDateTime.MAX);
             requireCoordinate = false;
             minLat = Double.MIN_VALUE;
             maxLat = Double.MAX_VALUE;
@@ -66,18 +72,39 @@ public class PoliceCall {
         }
 
         public boolean pass(PoliceCall policeCall) {
-            return severities.contains(policeCall.severity)
-                    && startDate.isBefore(policeCall.datetime)
-                    && endDate.isAfter(policeCall.datetime)
-                    && ((requireCoordinate && (policeCall.latitude != 0 && policeCall.longitude != 0)) || !requireCoordinate)
-                    && (policeCall.latitude >= minLat)
-                    && (policeCall.latitude <= maxLat)
-                    && (policeCall.longitude >= minLong)
-                    && (policeCall.longitude <= maxLong)
+            return passAllButDescription(policeCall.severity, policeCall.epochMinute, policeCall.latitude, policeCall.longitude)
                     && (descriptionWhiteList.isEmpty() || descriptionWhiteList.contains(policeCall.description))
                     && (!descriptionBlacklist.contains(policeCall.description));
         }
 
+        private boolean passAllButDescription(int severity, long epochMinute, double latitude, double longitude) {
+            return severities.contains(severity)
+                    && startMinute < epochMinute
+                    && epochMinute < endMinute
+                    && ((requireCoordinate && (latitude != 0 && longitude != 0)) || !requireCoordinate)
+                    && (latitude >= minLat)
+                    && (latitude <= maxLat)
+                    && (longitude >= minLong)
+                    && (longitude <= maxLong);
+        }
+
+        /**
+         * Compile the description white list and black list to a bit set. The
+         * result does not follow later changes to either list.
+         */
+        public DescriptionSet compileDescriptions(DescriptionDictionary dictionary) {
+            return DescriptionSet.compile(descriptionWhiteList, descriptionBlacklist, dictionary);
+        }
+
+        /**
+         * Compile the filter to an immutable predicate over primitive call
+         * fields. The result does not follow later changes to this filter.
+         * @param dictionary dictionary of the description ids to be tested
+         */
+        public CompiledFilter compile(DescriptionDictionary dictionary) {
+            return new CompiledFilter(this, startMinute, endMinute, dictionary);
+        }
+
         public ArrayList<Integer> getSeverities() {
             return severities;
         }
@@ -92,6 +119,7 @@ public class PoliceCall {
 
         public void setStartDate(LocalDateTime startDate) {
             this.startDate = startDate;
+            this.startMinute = TimestampParser.toEpochMinute(startDate);
         }
 
         public LocalDateTime getEndDate() {
@@ -100,6 +128,7 @@ public class PoliceCall {
 
         public void setEndDate(LocalDateTime endDate) {
             this.endDate = endDate;
+            this.endMinute = TimestampParser.toEpochMinuteCeiling(endDate);
         }
 
         public boolean isRequireCoordinate() {
@@ -181,74 +210,42 @@ public class PoliceCall {
      * appear on the next line as follows in the pattern: (39.316763,
      * -76.595269)" the entry almost always ends with quotation mark (")
      *
+     * The file is read in parallel by {@link PoliceCallReader}, see
+     * {@link PoliceCallReader#readTable(String, Filter)} for a columnar result.
+     * Calls whose record id is not a number are left out and counted.
+     *
      * @return array of PoliceCall objects
      * @throws FileNotFoundException
      * @throws IOException
      */
     public static PoliceCall[] readPoliceCalls(String crimeDataFile, Filter filter) throws FileNotFoundException, IOException {
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(crimeDataFile));
-        boolean skipLine = true;
-        String line;
-        ArrayList<PoliceCall> policeCalls = new ArrayList<>();
-        PoliceCall policeCall = new PoliceCall();
-        while ((line = bufferedReader.readLine()) != null) {
-
-            if (skipLine) {
-                skipLine = false;
-                continue;
-            }
-
-            try {
-                String[] tokens = line.split(",");
-                if (tokens.length > 5) {
-                    policeCall.setRecordId(tokens[0]);
-//                    policeCall.setNumber(tokens[1].substring(1));
-                    policeCall.setDatetime(LocalDateTime.parse(tokens[2], DATE_TIME_FORMATTER));
-                    policeCall.setSeverity(PoliceCall.severity(tokens[3]));
-//                    policeCall.setDistrict(tokens[4]);
-                    policeCall.setDescription(tokens[5]);
-//                    policeCall.setIncidentLocation(tokens[6]);
-//                    StringBuilder callLocation = new StringBuilder();
-//                    callLocation.append(tokens[7]);
-//                    for (int x = 8; x < tokens.length; x++){
-//                        callLocation.append(" ");
-//                        callLocation.append(tokens[x]);
-//                    }
-//                    policeCall.setCallLocation(callLocation.toString());
-                } else if (line.contains("BALTIMORE")) {
-                    policeCall.setCallLocation(policeCall.getCallLocation() + " " + (line.endsWith("\"") ? line.substring(0, line.length() - 1) : line));
-                } else {
-                    policeCall.setLatitude(Double.valueOf(line.substring(1, line.indexOf(","))));
-                    policeCall.setLongitude(Double.valueOf(line.substring(line.indexOf(" ") + 1, line.indexOf(")"))));
-                }
-                if (line.endsWith("\"") && (filter == null || filter.pass(policeCall))) {
-                    policeCalls.add(policeCall);
-                    policeCall = new PoliceCall();
-                }
-            } catch (Exception e) {
-                policeCall = new PoliceCall();
-            }
-        }
-        Collections.sort(policeCalls, DATE_TIME_COMPARATOR);
-
-        return policeCalls.toArray(new PoliceCall[0]);
+        return new PoliceCallReader().read(crimeDataFile, filter);
     }
 
+    /**
+     * Write calls as a json array if saveFilePath ends with .json, as newline
+     * delimited json if it ends with .ndjson and as csv otherwise. Either way
+     * the calls are streamed to the file, see {@link PoliceCallJsonWriter}.
+     * @throws IOException
+     */
     public static void write(PoliceCall[] policeCalls, String saveFilePath) throws IOException {
-        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(saveFilePath));
-        String content;
         if (saveFilePath.endsWith("json")) {
-            content = new Gson().toJson(policeCalls);
+            PoliceCallJsonWriter.FORMAT format = saveFilePath.endsWith(".ndjson")
+                    ? PoliceCallJsonWriter.FORMAT.NDJSON : PoliceCallJsonWriter.FORMAT.ARRAY;
+            try (PoliceCallJsonWriter jsonWriter = PoliceCallJsonWriter.open(saveFilePath, format)) {
+                for (PoliceCall policeCall : policeCalls) {
+                    jsonWriter.write(policeCall);
+                }
+            }
         } else {
-            content = toCSV(policeCalls);
+            // lines are streamed to the file rather than built as one String
+            CSVWriter csvWriter = CSVWriter.open(saveFilePath, false);
+            writeCSV(policeCalls, new CSVBuilder(csvWriter));
+            csvWriter.close();
         }
-        bufferedWriter.write(content);
-        bufferedWriter.flush();
-        bufferedWriter.close();
     }
 
-    private static String toCSV(PoliceCall[] policeCalls) {
-        CSVBuilder csvBuilder = new CSVBuilder();
+    private static void writeCSV(PoliceCall[] policeCalls, CSVBuilder csvBuilder) {
         for (PoliceCall policeCall : policeCalls) {
             csvBuilder
                     .append(policeCall.severity)
@@ -258,7 +255,6 @@ public class PoliceCall {
                     .append(policeCall.description)
                     .newline();
         }
-        return csvBuilder.toCSV();
     }
 
     public static int severity(String severity) {
@@ -292,6 +288,19 @@ public class PoliceCall {
 
     public void setDatetime(LocalDateTime datetime) {
         this.datetime = datetime;
+        this.epochMinute = TimestampParser.toEpochMinute(datetime);
+    }
+
+    void setDatetime(LocalDateTime datetime, long epochMinute) {
+        this.datetime = datetime;
+        this.epochMinute = epochMinute;
+    }
+
+    /**
+     * @return datetime as minutes since 1970-01-01T00:00 with seconds truncated
+     */
+    public long getEpochMinute() {
+        return epochMinute;
     }
 
     public String getAddress() {
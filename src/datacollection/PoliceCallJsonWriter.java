@@ -0,0 +1,216 @@
+package datacollection;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Streams police calls as json through a {@link JsonWriter}, one call at a
+ * time, so that no more than a call is held as text. Every call is written by
+ * hand in the schema Gson gives a PoliceCall: its fields in declaration order,
+ * null fields left out, datetime as {"date": {...}, "time": {...}} and
+ * characters escaped html safe. Calls are written either as one json array
+ * or as newline delimited json, one object per line.
+ *
+ * Newline delimited json of a table can also be written in parallel, see
+ * {@link #writeNdjson(PoliceCallTable, String, ForkJoinPool)}.
+ *
+ * Like Gson, writing a NaN or infinite coordinate throws an
+ * IllegalArgumentException.
+ *
+ * @author Benjamin Albert
+ */
+public class PoliceCallJsonWriter implements Closeable, Flushable {
+
+    public static enum FORMAT {
+        /* a single json array of every call */
+        ARRAY,
+        /* one json object per line */
+        NDJSON
+    }
+
+    /* rows formatted by one task of a parallel writer */
+    public static final int CHUNK_ROWS = 1 << 14;
+    /* about the length of the json of a row of a table */
+    private static final int ROW_BYTES = 256;
+
+    private final Writer writer;
+    private final JsonWriter json;
+    private final FORMAT format;
+
+    /**
+     * @param writer writer the json is written to, closed with this writer
+     */
+    public PoliceCallJsonWriter(Writer writer, FORMAT format) throws IOException {
+        this.writer = writer;
+        this.json = new JsonWriter(writer);
+        this.format = format;
+        json.setHtmlSafe(true);
+        if (format == FORMAT.ARRAY) {
+            json.beginArray();
+        } else {
+            /* every line is a document of its own */
+            json.setLenient(true);
+        }
+    }
+
+    /**
+     * @return writer to the file, replaced if it exists
+     * @throws IOException
+     */
+    public static PoliceCallJsonWriter open(String file, FORMAT format) throws IOException {
+        return new PoliceCallJsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)), format);
+    }
+
+    /**
+     * Write every call of a table as a json array, without making a
+     * PoliceCall of any of them.
+     * @throws IOException
+     */
+    public static void writeJson(PoliceCallTable policeCalls, String file) throws IOException {
+        try (PoliceCallJsonWriter jsonWriter = open(file, FORMAT.ARRAY)) {
+            jsonWriter.write(policeCalls);
+        }
+    }
+
+    /**
+     * Write every call of a table as newline delimited json. Chunks of
+     * CHUNK_ROWS rows are formatted by the tasks of pool and written to the
+     * file in order; at most two chunks per thread of pool are held at a
+     * time, however large the table.
+     * @throws IOException
+     */
+    public static void writeNdjson(PoliceCallTable policeCalls, String file, ForkJoinPool pool) throws IOException {
+        int maxRunning = 2 * pool.getParallelism();
+        ArrayDeque<ForkJoinTask<ByteArrayOutputStream>> running = new ArrayDeque<>();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            int from = 0;
+            while (from < policeCalls.size() || !running.isEmpty()) {
+                while (from < policeCalls.size() && running.size() < maxRunning) {
+                    int first = from;
+                    int last = Math.min(policeCalls.size(), from + CHUNK_ROWS);
+                    running.add(pool.submit(() -> chunk(policeCalls, first, last)));
+                    from = last;
+                }
+                ByteArrayOutputStream chunk;
+                try {
+                    chunk = running.poll().join();
+                } catch (RuntimeException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+                chunk.writeTo(out);
+            }
+        }
+    }
+
+    // Newline delimited json of rows [from, to)
+    private static ByteArrayOutputStream chunk(PoliceCallTable policeCalls, int from, int to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((to - from) * ROW_BYTES);
+        try (PoliceCallJsonWriter jsonWriter = new PoliceCallJsonWriter(new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8)), FORMAT.NDJSON)) {
+            for (int row = from; row < to; row++) {
+                jsonWriter.write(policeCalls, row);
+            }
+        }
+        return bytes;
+    }
+
+    public void write(PoliceCallTable policeCalls) throws IOException {
+        for (int row = 0; row < policeCalls.size(); row++) {
+            write(policeCalls, row);
+        }
+    }
+
+    /**
+     * Write a row of a table like the PoliceCall of {@link PoliceCallTable#getPoliceCall(int)}.
+     */
+    public void write(PoliceCallTable policeCalls, int row) throws IOException {
+        json.beginObject();
+        json.name("recordId").value(String.valueOf(policeCalls.getRecordId(row)));
+        writeDatetime(policeCalls.getDatetime(row));
+        json.name("epochMinute").value(policeCalls.getEpochMinute(row));
+        writeString("description", policeCalls.getDescription(row));
+        json.name("severity").value(policeCalls.getSeverity(row));
+        json.name("latitude").value(policeCalls.getLatitude(row));
+        json.name("longitude").value(policeCalls.getLongitude(row));
+        endObject();
+    }
+
+    public void write(PoliceCall policeCall) throws IOException {
+        json.beginObject();
+        writeString("recordId", policeCall.getRecordId());
+        writeDatetime(policeCall.getDatetime());
+        json.name("epochMinute").value(policeCall.getEpochMinute());
+        writeString("address", policeCall.getAddress());
+        writeString("description", policeCall.getDescription());
+        json.name("severity").value(policeCall.getSeverity());
+        writeString("district", policeCall.getDistrict());
+        writeString("number", policeCall.getNumber());
+        writeString("incidentLocation", policeCall.getIncidentLocation());
+        writeString("callLocation", policeCall.getCallLocation());
+        json.name("latitude").value(policeCall.getLatitude());
+        json.name("longitude").value(policeCall.getLongitude());
+        endObject();
+    }
+
+    private void writeString(String name, String value) throws IOException {
+        if (value != null) {
+            json.name(name).value(value);
+        }
+    }
+
+    private void writeDatetime(LocalDateTime datetime) throws IOException {
+        if (datetime == null) {
+            return;
+        }
+        json.name("datetime").beginObject();
+        json.name("date").beginObject()
+                .name("year").value(datetime.getYear())
+                .name("month").value(datetime.getMonthValue())
+                .name("day").value(datetime.getDayOfMonth())
+                .endObject();
+        json.name("time").beginObject()
+                .name("hour").value(datetime.getHour())
+                .name("minute").value(datetime.getMinute())
+                .name("second").value(datetime.getSecond())
+                .name("nano").value(datetime.getNano())
+                .endObject();
+        json.endObject();
+    }
+
+    private void endObject() throws IOException {
+        json.endObject();
+        if (format == FORMAT.NDJSON) {
+            writer.write('\n');
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        json.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (format == FORMAT.ARRAY) {
+            json.endArray();
+        }
+        /* JsonWriter.close() rejects newline delimited json without calls */
+        writer.close();
+    }
+}
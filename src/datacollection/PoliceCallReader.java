@@ -0,0 +1,381 @@
+package datacollection;
+
+import datacollection.PoliceCall.Filter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel reader for the raw 911 call csv.
+ *
+ * The file is memory-mapped and split into chunks of roughly chunkBytes. Every
+ * chunk begins at a record boundary, i.e. right after a line that ends with a
+ * closing quotation mark ("), so each chunk can be parsed independently on a
+ * fork-join pool. The parsed chunks are concatenated in file order and sorted
+ * with a stable sort, so the result is the same as a sequential read.
+ *
+ * @author Benjamin Albert
+ */
+public class PoliceCallReader {
+
+    public static final int DEFAULT_CHUNK_BYTES = 1 << 24;
+
+    private static final int BOUNDARY_SEARCH_BYTES = 1 << 16;
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private static final byte QUOTE = '"';
+
+    private final ForkJoinPool pool;
+    private final int chunkBytes;
+
+    public PoliceCallReader() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_BYTES);
+    }
+
+    public PoliceCallReader(ForkJoinPool pool, int chunkBytes) {
+        if (chunkBytes <= 0) {
+            throw new IllegalArgumentException("chunkBytes (" + chunkBytes + ") must be positive");
+        }
+        this.pool = pool;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * @param crimeDataFile csv file in the format described by
+     * {@link PoliceCall#readPoliceCalls(String, Filter)}
+     * @param filter calls that do not pass are dropped (null keeps every call)
+     * @return calls sorted by date and time
+     * @throws IOException
+     */
+    public PoliceCall[] read(String crimeDataFile, Filter filter) throws IOException {
+        return readTable(crimeDataFile, filter).toPoliceCalls();
+    }
+
+    /**
+     * @param crimeDataFile csv file in the format described by
+     * {@link PoliceCall#readPoliceCalls(String, Filter)}
+     * @param filter calls that do not pass are dropped (null keeps every call)
+     * @return table of calls sorted by date and time
+     * @throws IOException
+     */
+    public PoliceCallTable readTable(String crimeDataFile, Filter filter) throws IOException {
+        return readTable(crimeDataFile, filter, 0, Long.MIN_VALUE);
+    }
+
+    /**
+     * Reads only part of a file, e.g. the records appended since it was last
+     * read.
+     *
+     * @param crimeDataFile csv file in the format described by
+     * {@link PoliceCall#readPoliceCalls(String, Filter)}
+     * @param filter calls that do not pass are dropped (null keeps every call)
+     * @param fromOffset byte offset of the first record to read, which must
+     * be the start of a record (0 reads the whole file)
+     * @param minRecordId only calls with a greater record id are kept
+     * (Long.MIN_VALUE keeps every call)
+     * @return table of calls sorted by date and time
+     * @throws IOException
+     */
+    public PoliceCallTable readTable(String crimeDataFile, Filter filter, long fromOffset, long minRecordId) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(crimeDataFile), StandardOpenOption.READ)) {
+            long[] boundaries = chunkBoundaries(channel, fromOffset);
+            ArrayList<ChunkTask> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                ChunkTask task = new ChunkTask(channel, boundaries[i], boundaries[i + 1], filter, minRecordId);
+                tasks.add(task);
+                pool.execute(task);
+            }
+            PoliceCallTable.Builder builder = new PoliceCallTable.Builder();
+            for (ChunkTask task : tasks) {
+                try {
+                    builder.addAll(task.join());
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * @return ascending byte offsets where the first is the end of the header
+     * line (or fromOffset if it is positive) and the last is the size of the
+     * file
+     */
+    private long[] chunkBoundaries(FileChannel channel, long fromOffset) throws IOException {
+        long size = channel.size();
+        ArrayList<Long> boundaries = new ArrayList<>();
+        long start = fromOffset > 0 ? Math.min(fromOffset, size) : nextLine(channel, 0, size, false);
+        boundaries.add(start);
+        while (start < size) {
+            long end = start + chunkBytes >= size ? size : nextLine(channel, start + chunkBytes, size, true);
+            boundaries.add(end);
+            start = end;
+        }
+        long[] offsets = new long[boundaries.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = boundaries.get(i);
+        }
+        return offsets;
+    }
+
+    /**
+     * @param from offset at which to start searching
+     * @param recordEnd if true, only lines ending with a closing quotation mark
+     * count as a boundary
+     * @return offset of the first line following the boundary or the size of
+     * the file if none exists
+     */
+    private static long nextLine(FileChannel channel, long from, long size, boolean recordEnd) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(BOUNDARY_SEARCH_BYTES);
+        long position = Math.max(0, from - 2);
+        byte previous = 0;
+        byte beforePrevious = 0;
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte current = window.get(i);
+                long offset = position + i;
+                if (current == NEWLINE && offset >= from
+                        && (!recordEnd || previous == QUOTE || (previous == CARRIAGE_RETURN && beforePrevious == QUOTE))) {
+                    return offset + 1;
+                }
+                beforePrevious = previous;
+                previous = current;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static class ChunkTask extends RecursiveTask<PoliceCallTable.Builder> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final Filter filter;
+        private final long minRecordId;
+
+        ChunkTask(FileChannel channel, long start, long end, Filter filter, long minRecordId) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.filter = filter;
+            this.minRecordId = minRecordId;
+        }
+
+        @Override
+        protected PoliceCallTable.Builder compute() {
+            MappedByteBuffer chunk;
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            RecordAssembler assembler = new RecordAssembler(filter, minRecordId);
+            int length = chunk.limit();
+            int lineStart = 0;
+            while (lineStart < length) {
+                int lineEnd = CSVTokenizer.lineEnd(chunk, lineStart, length);
+                assembler.accept(chunk, lineStart, CSVTokenizer.trimCarriageReturn(chunk, lineStart, lineEnd));
+                lineStart = lineEnd + 1;
+            }
+            return assembler.builder;
+        }
+    }
+
+    /**
+     * Parses a csv that arrives in blocks of any size, e.g. while it is being
+     * downloaded. Lines split between blocks are carried over to the next
+     * block.
+     */
+    public static class StreamParser {
+
+        private final RecordAssembler assembler;
+        private boolean skipHeader;
+        private byte[] pending;
+        private int pendingLength;
+
+        /**
+         * @param filter calls that do not pass are dropped (null keeps every
+         * call)
+         */
+        public StreamParser(Filter filter) {
+            this.assembler = new RecordAssembler(filter);
+            this.skipHeader = true;
+            this.pending = new byte[256];
+        }
+
+        public void accept(byte[] bytes, int offset, int length) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int end = offset + length;
+            int lineStart = offset;
+            while (lineStart < end) {
+                int lineEnd = CSVTokenizer.lineEnd(buffer, lineStart, end);
+                if (lineEnd == end) {
+                    carry(bytes, lineStart, end);
+                    break;
+                }
+                if (pendingLength > 0) {
+                    carry(bytes, lineStart, lineEnd);
+                    line(ByteBuffer.wrap(pending), 0, pendingLength);
+                    pendingLength = 0;
+                } else {
+                    line(buffer, lineStart, lineEnd);
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+
+        /**
+         * @return table of the calls parsed so far, sorted by date and time
+         */
+        public PoliceCallTable finish() {
+            if (pendingLength > 0) {
+                line(ByteBuffer.wrap(pending), 0, pendingLength);
+                pendingLength = 0;
+            }
+            return assembler.builder.build();
+        }
+
+        private void carry(byte[] bytes, int start, int end) {
+            int length = end - start;
+            if (pendingLength + length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+            }
+            System.arraycopy(bytes, start, pending, pendingLength, length);
+            pendingLength += length;
+        }
+
+        private void line(ByteBuffer buffer, int start, int end) {
+            if (skipHeader) {
+                skipHeader = false;
+                return;
+            }
+            assembler.accept(buffer, start, CSVTokenizer.trimCarriageReturn(buffer, start, end));
+        }
+    }
+
+    /**
+     * Rebuilds records that span several lines. A record always ends on a line
+     * ending with a closing quotation mark, after which a new record begins
+     * whether or not the previous one passed the filter. Records without a
+     * leading call line (e.g. because its date could not be parsed) are
+     * dropped.
+     *
+     * Lines are tokenized in place, descriptions are interned from their raw
+     * bytes and records are appended straight to table columns, so no String
+     * is created per record.
+     *
+     * The filter is pushed down into parsing: the description and severity
+     * are checked first, straight from the call line, and the date and
+     * coordinates of a record are only decoded while it can still pass. A
+     * record id watermark is checked before anything else. Records whose id
+     * is not a number are dropped and counted, see
+     * {@link PoliceCallTable.Builder#skipMalformedRecordId()}.
+     */
+    static class RecordAssembler {
+
+        private static final byte[] BALTIMORE = "BALTIMORE".getBytes(StandardCharsets.US_ASCII);
+
+        private final PoliceCallTable.Builder builder;
+        private final CSVTokenizer tokenizer;
+        private final TimestampParser timestamps;
+        private final DescriptionDictionary.ByteCache descriptions;
+        private final CompiledFilter compiledFilter;
+        private final long minRecordId;
+        private boolean started;
+        private boolean rejected;
+        private long recordId;
+        private long epochMinute;
+        private int severity;
+        private int descriptionId;
+        private double latitude;
+        private double longitude;
+
+        RecordAssembler(Filter filter) {
+            this(filter, Long.MIN_VALUE);
+        }
+
+        /**
+         * @param minRecordId only records with a greater id are kept, records
+         * whose id is not a number are never kept
+         */
+        RecordAssembler(Filter filter, long minRecordId) {
+            this.minRecordId = minRecordId;
+            this.builder = new PoliceCallTable.Builder();
+            this.tokenizer = new CSVTokenizer();
+            this.timestamps = new TimestampParser();
+            this.descriptions = new DescriptionDictionary.ByteCache(builder.getDictionary());
+            this.compiledFilter = filter == null ? null : filter.compile(builder.getDictionary());
+        }
+
+        /**
+         * @param line buffer holding the line content in [start, end)
+         */
+        void accept(ByteBuffer line, int start, int end) {
+            try {
+                if (tokenizer.tokenize(line, start, end) > 5) {
+                    started = true;
+                    try {
+                        recordId = tokenizer.parseLong(0);
+                        rejected = recordId <= minRecordId;
+                    } catch (NumberFormatException e) {
+                        builder.skipMalformedRecordId();
+                        rejected = true;
+                    }
+                    if (!rejected) {
+                        descriptionId = descriptions.intern(line, tokenizer.start(5), tokenizer.end(5));
+                        severity = tokenizer.match(3, PoliceCall.SEVERITY_NAMES);
+                        rejected = compiledFilter != null
+                                && !(compiledFilter.passDescription(descriptionId) && compiledFilter.passSeverity(severity));
+                    }
+                    if (!rejected) {
+                        epochMinute = timestamps.parseCallDateTime(line, tokenizer.start(2), tokenizer.end(2));
+                        rejected = compiledFilter != null && !compiledFilter.passDate(epochMinute);
+                    }
+                } else if (!rejected && !tokenizer.contains(start, end, BALTIMORE)) {
+                    /* coordinate line: (39.316763, -76.595269)" */
+                    int comma = tokenizer.indexOf((byte) ',', start, end);
+                    int space = tokenizer.indexOf((byte) ' ', start, end);
+                    int parenthesis = tokenizer.indexOf((byte) ')', start, end);
+                    if (comma < start + 1 || space < 0 || parenthesis < 0) {
+                        throw new NumberFormatException("malformed coordinates");
+                    }
+                    latitude = tokenizer.parseDouble(start + 1, comma);
+                    longitude = tokenizer.parseDouble(space + 1, parenthesis);
+                }
+                if (end > start && line.get(end - 1) == QUOTE) {
+                    if (started && !rejected && (compiledFilter == null || compiledFilter.passCoordinate(latitude, longitude))) {
+                        builder.add(recordId, epochMinute, severity, descriptionId, latitude, longitude);
+                    }
+                    reset();
+                }
+            } catch (Exception e) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            started = false;
+            rejected = false;
+            latitude = 0;
+            longitude = 0;
+        }
+    }
+}
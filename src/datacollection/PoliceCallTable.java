@@ -0,0 +1,411 @@
+package datacollection;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Column-oriented store of police calls sorted by date and time.
+ *
+ * Every call is a row spread over primitive columns (record id, epoch minute,
+ * latitude, longitude, severity and description id). Descriptions are ids of a
+ * {@link DescriptionDictionary}, so each distinct description is kept once.
+ * PoliceCall objects are only created on demand by {@link #getPoliceCall(int)}.
+ *
+ * The columns are buffers: arrays on the heap for parsed tables, or views of
+ * a memory-mapped snapshot (see {@link SnapshotCache}) that are read in place.
+ * Tables made from a table, e.g. by {@link #select(int[], int)}, are on the
+ * heap.
+ *
+ * @author Benjamin Albert
+ */
+public class PoliceCallTable {
+
+    private final int size;
+    private final LongBuffer recordIds;
+    private final LongBuffer epochMinutes;
+    private final DoubleBuffer latitudes;
+    private final DoubleBuffer longitudes;
+    private final ByteBuffer severities;
+    private final IntBuffer descriptionIds;
+    private final DescriptionDictionary dictionary;
+
+    PoliceCallTable(int size, long[] recordIds, long[] epochMinutes, double[] latitudes, double[] longitudes, byte[] severities, int[] descriptionIds, DescriptionDictionary dictionary) {
+        this(size, LongBuffer.wrap(recordIds), LongBuffer.wrap(epochMinutes), DoubleBuffer.wrap(latitudes), DoubleBuffer.wrap(longitudes),
+                ByteBuffer.wrap(severities), IntBuffer.wrap(descriptionIds), dictionary);
+    }
+
+    /**
+     * Columns are read with absolute gets from index 0 and must not change.
+     */
+    PoliceCallTable(int size, LongBuffer recordIds, LongBuffer epochMinutes, DoubleBuffer latitudes, DoubleBuffer longitudes, ByteBuffer severities, IntBuffer descriptionIds, DescriptionDictionary dictionary) {
+        this.size = size;
+        this.recordIds = recordIds;
+        this.epochMinutes = epochMinutes;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.severities = severities;
+        this.descriptionIds = descriptionIds;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @param policeCalls calls in any order
+     * @return table of the calls sorted by date and time, without the calls
+     * whose record id is not a number (see {@link Builder#skipMalformedRecordId()})
+     */
+    public static PoliceCallTable of(PoliceCall[] policeCalls) {
+        Builder builder = new Builder(policeCalls.length);
+        for (PoliceCall policeCall : policeCalls) {
+            long recordId;
+            try {
+                recordId = Long.parseLong(policeCall.getRecordId());
+            } catch (NumberFormatException e) {
+                builder.skipMalformedRecordId();
+                continue;
+            }
+            builder.add(recordId, policeCall.getEpochMinute(), policeCall.getSeverity(), policeCall.getDescription(),
+                    policeCall.getLatitude(), policeCall.getLongitude());
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getRecordId(int row) {
+        return recordIds.get(row);
+    }
+
+    public long getEpochMinute(int row) {
+        return epochMinutes.get(row);
+    }
+
+    public LocalDateTime getDatetime(int row) {
+        return TimestampParser.toLocalDateTime(epochMinutes.get(row));
+    }
+
+    public double getLatitude(int row) {
+        return latitudes.get(row);
+    }
+
+    public double getLongitude(int row) {
+        return longitudes.get(row);
+    }
+
+    public int getSeverity(int row) {
+        return severities.get(row);
+    }
+
+    public int getDescriptionId(int row) {
+        return descriptionIds.get(row);
+    }
+
+    public String getDescription(int row) {
+        return dictionary.get(descriptionIds.get(row));
+    }
+
+    /**
+     * @return the dictionary of the description ids
+     */
+    public DescriptionDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param rows ascending rows to keep
+     * @param count number of entries of rows to use
+     * @return table of the given rows
+     */
+    public PoliceCallTable select(int[] rows, int count) {
+        long[] selectedRecordIds = new long[count];
+        long[] selectedEpochMinutes = new long[count];
+        double[] selectedLatitudes = new double[count];
+        double[] selectedLongitudes = new double[count];
+        byte[] selectedSeverities = new byte[count];
+        int[] selectedDescriptionIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            selectedRecordIds[i] = recordIds.get(row);
+            selectedEpochMinutes[i] = epochMinutes.get(row);
+            selectedLatitudes[i] = latitudes.get(row);
+            selectedLongitudes[i] = longitudes.get(row);
+            selectedSeverities[i] = severities.get(row);
+            selectedDescriptionIds[i] = descriptionIds.get(row);
+        }
+        return new PoliceCallTable(count, selectedRecordIds, selectedEpochMinutes, selectedLatitudes, selectedLongitudes,
+                selectedSeverities, selectedDescriptionIds, dictionary);
+    }
+
+    /**
+     * @return first row whose epoch minute is not less than epochMinute, or
+     * size() if there is none
+     */
+    public int lowerBound(long epochMinute) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (epochMinutes.get(middle) < epochMinute) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the largest record id or -1 if the table is empty
+     */
+    public long maxRecordId() {
+        long max = -1;
+        for (int row = 0; row < size; row++) {
+            max = Math.max(max, recordIds.get(row));
+        }
+        return max;
+    }
+
+    /**
+     * Merges two sorted tables in linear time. Rows of equal time keep this
+     * table first.
+     *
+     * @return table holding the rows of both tables sorted by date and time,
+     * using the dictionary of this table
+     */
+    public PoliceCallTable merge(PoliceCallTable other) {
+        int mergedSize = size + other.size;
+        long[] mergedRecordIds = new long[mergedSize];
+        long[] mergedEpochMinutes = new long[mergedSize];
+        double[] mergedLatitudes = new double[mergedSize];
+        double[] mergedLongitudes = new double[mergedSize];
+        byte[] mergedSeverities = new byte[mergedSize];
+        int[] mergedDescriptionIds = new int[mergedSize];
+        int i = 0;
+        int j = 0;
+        for (int row = 0; row < mergedSize; row++) {
+            PoliceCallTable source;
+            int sourceRow;
+            if (j == other.size || (i < size && epochMinutes.get(i) <= other.epochMinutes.get(j))) {
+                source = this;
+                sourceRow = i++;
+            } else {
+                source = other;
+                sourceRow = j++;
+            }
+            mergedRecordIds[row] = source.recordIds.get(sourceRow);
+            mergedEpochMinutes[row] = source.epochMinutes.get(sourceRow);
+            mergedLatitudes[row] = source.latitudes.get(sourceRow);
+            mergedLongitudes[row] = source.longitudes.get(sourceRow);
+            mergedSeverities[row] = source.severities.get(sourceRow);
+            mergedDescriptionIds[row] = source.dictionary == dictionary
+                    ? source.descriptionIds.get(sourceRow)
+                    : dictionary.intern(source.getDescription(sourceRow));
+        }
+        return new PoliceCallTable(mergedSize, mergedRecordIds, mergedEpochMinutes, mergedLatitudes, mergedLongitudes,
+                mergedSeverities, mergedDescriptionIds, dictionary);
+    }
+
+    public PoliceCall getPoliceCall(int row) {
+        PoliceCall policeCall = new PoliceCall();
+        policeCall.setRecordId(String.valueOf(recordIds.get(row)));
+        policeCall.setDatetime(getDatetime(row), epochMinutes.get(row));
+        policeCall.setSeverity(severities.get(row));
+        policeCall.setDescription(getDescription(row));
+        policeCall.setLatitude(latitudes.get(row));
+        policeCall.setLongitude(longitudes.get(row));
+        return policeCall;
+    }
+
+    public PoliceCall[] toPoliceCalls() {
+        PoliceCall[] policeCalls = new PoliceCall[size];
+        for (int row = 0; row < size; row++) {
+            policeCalls[row] = getPoliceCall(row);
+        }
+        return policeCalls;
+    }
+
+    /**
+     * Appends rows in any order. {@link #build()} sorts them by date and time,
+     * keeping rows with equal times in the order they were added.
+     *
+     * Record ids are numbers, so that they can be compared and stored in a
+     * column. Rows whose record id is not a number are left out by whoever
+     * adds the rows and only counted, see {@link #skipMalformedRecordId()}.
+     */
+    public static class Builder {
+
+        private int size;
+        private long[] recordIds;
+        private long[] epochMinutes;
+        private double[] latitudes;
+        private double[] longitudes;
+        private byte[] severities;
+        private int[] descriptionIds;
+        private final DescriptionDictionary dictionary;
+        private int malformedRecordIds;
+
+        public Builder() {
+            this(1024);
+        }
+
+        public Builder(int capacity) {
+            this(capacity, DescriptionDictionary.global());
+        }
+
+        public Builder(int capacity, DescriptionDictionary dictionary) {
+            capacity = Math.max(capacity, 16);
+            recordIds = new long[capacity];
+            epochMinutes = new long[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            severities = new byte[capacity];
+            descriptionIds = new int[capacity];
+            this.dictionary = dictionary;
+        }
+
+        public DescriptionDictionary getDictionary() {
+            return dictionary;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Count a row that was left out because its record id is not a
+         * number. {@link #build()} reports how many were.
+         */
+        public void skipMalformedRecordId() {
+            malformedRecordIds++;
+        }
+
+        /**
+         * @return number of rows left out because their record id is not a
+         * number
+         */
+        public int getMalformedRecordIds() {
+            return malformedRecordIds;
+        }
+
+        public Builder add(long recordId, long epochMinute, int severity, String description, double latitude, double longitude) {
+            return add(recordId, epochMinute, severity, dictionary.intern(description), latitude, longitude);
+        }
+
+        /**
+         * @param descriptionId id in the dictionary of this builder
+         */
+        public Builder add(long recordId, long epochMinute, int severity, int descriptionId, double latitude, double longitude) {
+            if (size == epochMinutes.length) {
+                grow(size * 2);
+            }
+            recordIds[size] = recordId;
+            epochMinutes[size] = epochMinute;
+            severities[size] = (byte) severity;
+            descriptionIds[size] = descriptionId;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            size++;
+            return this;
+        }
+
+        /**
+         * Appends every row of other, re-encoding its descriptions if it uses
+         * another dictionary.
+         */
+        public Builder addAll(Builder other) {
+            if (size + other.size > epochMinutes.length) {
+                grow(Math.max(size * 2, size + other.size));
+            }
+            System.arraycopy(other.recordIds, 0, recordIds, size, other.size);
+            System.arraycopy(other.epochMinutes, 0, epochMinutes, size, other.size);
+            System.arraycopy(other.severities, 0, severities, size, other.size);
+            System.arraycopy(other.latitudes, 0, latitudes, size, other.size);
+            System.arraycopy(other.longitudes, 0, longitudes, size, other.size);
+            if (other.dictionary == dictionary) {
+                System.arraycopy(other.descriptionIds, 0, descriptionIds, size, other.size);
+            } else {
+                for (int row = 0; row < other.size; row++) {
+                    descriptionIds[size + row] = dictionary.intern(other.dictionary.get(other.descriptionIds[row]));
+                }
+            }
+            size += other.size;
+            malformedRecordIds += other.malformedRecordIds;
+            return this;
+        }
+
+        private void grow(int capacity) {
+            recordIds = Arrays.copyOf(recordIds, capacity);
+            epochMinutes = Arrays.copyOf(epochMinutes, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            severities = Arrays.copyOf(severities, capacity);
+            descriptionIds = Arrays.copyOf(descriptionIds, capacity);
+        }
+
+        public PoliceCallTable build() {
+            if (malformedRecordIds > 0) {
+                System.err.println("skipped " + malformedRecordIds + " calls whose record id is not a number");
+            }
+            int[] order = sortedOrder();
+            long[] sortedRecordIds = new long[size];
+            long[] sortedEpochMinutes = new long[size];
+            double[] sortedLatitudes = new double[size];
+            double[] sortedLongitudes = new double[size];
+            byte[] sortedSeverities = new byte[size];
+            int[] sortedDescriptionIds = new int[size];
+            for (int row = 0; row < size; row++) {
+                int source = order[row];
+                sortedRecordIds[row] = recordIds[source];
+                sortedEpochMinutes[row] = epochMinutes[source];
+                sortedLatitudes[row] = latitudes[source];
+                sortedLongitudes[row] = longitudes[source];
+                sortedSeverities[row] = severities[source];
+                sortedDescriptionIds[row] = descriptionIds[source];
+            }
+            return new PoliceCallTable(size, sortedRecordIds, sortedEpochMinutes, sortedLatitudes, sortedLongitudes,
+                    sortedSeverities, sortedDescriptionIds, dictionary);
+        }
+
+        /**
+         * @return row indices in stable date and time order
+         */
+        private int[] sortedOrder() {
+            int[] order = new int[size];
+            if (size == 0) {
+                return order;
+            }
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int row = 0; row < size; row++) {
+                min = Math.min(min, epochMinutes[row]);
+                max = Math.max(max, epochMinutes[row]);
+            }
+            if (max - min >= 0 && max - min < (1L << 31)) {
+                /* the row index in the low bits keeps equal times in insertion order */
+                long[] keys = new long[size];
+                for (int row = 0; row < size; row++) {
+                    keys[row] = ((epochMinutes[row] - min) << 32) | row;
+                }
+                Arrays.parallelSort(keys);
+                for (int row = 0; row < size; row++) {
+                    order[row] = (int) keys[row];
+                }
+            } else {
+                Integer[] boxed = new Integer[size];
+                for (int row = 0; row < size; row++) {
+                    boxed[row] = row;
+                }
+                Arrays.parallelSort(boxed, (Integer r1, Integer r2) -> Long.compare(epochMinutes[r1], epochMinutes[r2]));
+                for (int row = 0; row < size; row++) {
+                    order[row] = boxed[row];
+                }
+            }
+            return order;
+        }
+    }
+}
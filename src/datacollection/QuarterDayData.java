@@ -1,34 +1,101 @@
 package datacollection;
+import java.nio.IntBuffer;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 
 public class QuarterDayData {
 
-    private int[][][] sums;
+    // counts indexed by (row * columns + column) * Grid.SEVERITIES + severity
+    private IntBuffer counts;
+    private int rows;
+    private int col;
     private WeatherReport weatherReport;
+    private StationWeights stationWeights;
+    // ascending indices of the non-zero counts, null until needed
+    private int[] nonZero;
 
     public QuarterDayData(Grid grid, WeatherReport report) {
-        this.sums = grid.calcSeverities();
+        this.counts = IntBuffer.wrap(grid.getCounts().clone());
+        this.rows = grid.getrBins();
+        this.col = grid.getcBins();
         this.weatherReport = report;
     }
 
+    /** Also write the weather of every cell, interpolated from the stations.
+     * @param stationWeights weights for the geometry of grid
+     */
+    public QuarterDayData(Grid grid, WeatherReport report, StationWeights stationWeights) {
+        this(grid, report);
+        this.stationWeights = stationWeights;
+    }
+
+    /** Read the counts of a window of a cube instead of copying them.
+     * @param window the window of the cube that report belongs to
+     * @param stationWeights weights for the geometry of the cube, or null
+     */
+    public QuarterDayData(CountCube cube, int window, WeatherReport report, StationWeights stationWeights) {
+        this.counts = cube.getWindow(window);
+        this.rows = cube.getRows();
+        this.col = cube.getCols();
+        this.weatherReport = report;
+        this.stationWeights = stationWeights;
+        this.nonZero = cube.getNonZeroIndices(window);
+    }
+
     public int callsPerQuarterDay() {
-        int rows = this.sums.length;
-        int col = this.sums[0].length;
+        int[] nonZero = nonZero();
         int sum = 0;
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < col; j++) {
-                for (int k = 0; k < 5; k++) {
-                    sum += this.sums[i][j][k];
+        for (int i : nonZero) {
+            sum += this.counts.get(i);
+        }
+        return sum;
+    }
+
+    /** The indices of the non-zero counts, noted by the cube while counting,
+     * or else found in one pass over the counts.
+     */
+    private int[] nonZero() {
+        if (this.nonZero == null) {
+            int[] indices = new int[16];
+            int entries = 0;
+            for (int i = 0; i < this.counts.limit(); i++) {
+                if (this.counts.get(i) != 0) {
+                    if (entries == indices.length) {
+                        indices = Arrays.copyOf(indices, entries * 2);
+                    }
+                    indices[entries++] = i;
                 }
             }
+            this.nonZero = Arrays.copyOf(indices, entries);
         }
-        return sum;
+        return this.nonZero;
     }
 
     public String toCSV() {
         CSVBuilder csvBuilder = new CSVBuilder();
-        int col = this.sums[0].length;
-        int rows = this.sums.length;
+        write(csvBuilder);
+        return csvBuilder.toCSV();
+    }
+
+    /** Append the line of this window.
+     * @param csvBuilder builder of the formatted file
+     */
+    public void write(CSVBuilder csvBuilder) {
+        write(csvBuilder, false);
+    }
+
+    /** Append the line of this window with only the boxes holding calls:
+     * after the weather, the number of entries, then row, column, severity
+     * and count of each non-zero count, row by row.
+     * @param csvBuilder builder of the formatted file
+     */
+    public void writeSparse(CSVBuilder csvBuilder) {
+        write(csvBuilder, true);
+    }
+
+    private void write(CSVBuilder csvBuilder, boolean sparse) {
+        int col = this.col;
+        int rows = this.rows;
         int calls = callsPerQuarterDay();
         csvBuilder
             .append(this.weatherReport.getStartDateTime().toString())
@@ -55,15 +122,40 @@ public class QuarterDayData {
             csvBuilder.append(this.weatherReport.getRelativeHumidity());
         }
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < col; j++) {
-                for (int k = 0; k < 5; k++) {
-                    csvBuilder.append(this.sums[i][j][k]);
-                }
+        if (sparse) {
+            int[] nonZero = nonZero();
+            csvBuilder.append(nonZero.length);
+            for (int i : nonZero) {
+                int box = i / Grid.SEVERITIES;
+                csvBuilder
+                    .append(box / col)
+                    .append(box % col)
+                    .append(i % Grid.SEVERITIES)
+                    .append(this.counts.get(i));
+            }
+        } else {
+            // every box row by row, severities 0 to 4 within a box
+            for (int i = 0; i < this.counts.limit(); i++) {
+                csvBuilder.append(this.counts.get(i));
             }
         }
+
+        // per cell fahrenheit, precipitation and humidity, row by row
+        if (this.stationWeights != null) {
+            appendCells(csvBuilder, WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT);
+            appendCells(csvBuilder, WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES);
+            appendCells(csvBuilder, WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY);
+        }
         csvBuilder.newline();
-        return csvBuilder.toCSV();
     }
 
-}
\ No newline at end of file
+    private void appendCells(CSVBuilder csvBuilder, WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD field) {
+        for (double value : this.stationWeights.interpolate(this.weatherReport, field)) {
+            if (Double.isNaN(value)) {
+                csvBuilder.append("null");
+            } else {
+                csvBuilder.append(value);
+            }
+        }
+    }
+}
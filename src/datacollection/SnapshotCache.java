@@ -0,0 +1,379 @@
+package datacollection;
+
+import datacollection.WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD;
+import datacollection.WeatherReport.StationReport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary columnar snapshots of parsed raw data.
+ *
+ * The first read of a raw csv parses it and writes a snapshot next to it.
+ * Later reads memory-map the snapshot instead of parsing the csv. The columns
+ * of a call snapshot are read in place: the table wraps views of the mapping
+ * and nothing is copied to the heap, so a warm start only costs the pages
+ * that are touched. Station reports are still made objects, since
+ * {@link WeatherAggregator} sorts them in place and there are only a few
+ * tens of thousands of them. A snapshot
+ * records the size, modification time and a content hash of the csv it was
+ * built from and is rebuilt as soon as any of them changes. The content hash is
+ * a CRC32 over evenly spaced samples of the csv (plus its tail) so that
+ * validating a multi-gigabyte file does not require reading all of it.
+ *
+ * Calls are snapshotted unfiltered, so one snapshot serves every
+ * {@link PoliceCall.Filter}.
+ *
+ * @author Benjamin Albert
+ */
+public class SnapshotCache {
+
+    private static final int CALL_MAGIC = 0x50435453;
+    private static final int STATION_MAGIC = 0x57535253;
+    private static final int VERSION = 1;
+    private static final int HASH_SAMPLES = 16;
+    private static final int HASH_SAMPLE_BYTES = 1 << 16;
+
+    /**
+     * @param crimeDataFile raw 911 call csv
+     * @param snapshotFile snapshot of crimeDataFile, created or rebuilt as
+     * needed
+     * @return every call of crimeDataFile sorted by date and time
+     * @throws IOException
+     */
+    public static PoliceCallTable readPoliceCallTable(String crimeDataFile, String snapshotFile) throws IOException {
+        Fingerprint fingerprint = Fingerprint.of(new File(crimeDataFile));
+        File snapshot = new File(snapshotFile);
+        if (snapshot.exists()) {
+            try {
+                PoliceCallTable table = readPoliceCallSnapshot(snapshot, fingerprint);
+                if (table != null) {
+                    return table;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("ignoring unreadable snapshot " + snapshotFile + ": " + e);
+            }
+        }
+        PoliceCallTable table = new PoliceCallReader().readTable(crimeDataFile, null);
+        writePoliceCallSnapshot(table, snapshot, fingerprint);
+        return table;
+    }
+
+    /**
+     * @param weatherDataFile raw weather station csv
+     * @param snapshotFile snapshot of weatherDataFile, created or rebuilt as
+     * needed
+     * @return station reports in file order
+     * @throws IOException
+     */
+    public static StationReport[] readStationReports(String weatherDataFile, String snapshotFile) throws IOException {
+        Fingerprint fingerprint = Fingerprint.of(new File(weatherDataFile));
+        File snapshot = new File(snapshotFile);
+        if (snapshot.exists()) {
+            try {
+                StationReport[] stationReports = readStationSnapshot(snapshot, fingerprint);
+                if (stationReports != null) {
+                    return stationReports;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("ignoring unreadable snapshot " + snapshotFile + ": " + e);
+            }
+        }
+        StationReport[] stationReports = StationReport.readStationReports(weatherDataFile);
+        writeStationSnapshot(stationReports, snapshot, fingerprint);
+        return stationReports;
+    }
+
+    public static void writePoliceCallSnapshot(PoliceCallTable table, File snapshot, Fingerprint fingerprint) throws IOException {
+        int rows = table.size();
+        /* only the descriptions used by the table are written, renumbered densely */
+        HashMap<Integer, Integer> localIds = new HashMap<>();
+        ArrayList<String> descriptions = new ArrayList<>();
+        int[] descriptionIds = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            Integer localId = localIds.get(table.getDescriptionId(row));
+            if (localId == null) {
+                localId = descriptions.size();
+                localIds.put(table.getDescriptionId(row), localId);
+                descriptions.add(table.getDescription(row));
+            }
+            descriptionIds[row] = localId;
+        }
+        File temporary = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            writeHeader(out, CALL_MAGIC, fingerprint, rows);
+            writeStrings(out, descriptions);
+            for (int row = 0; row < rows; row++) {
+                out.writeLong(table.getRecordId(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                out.writeLong(table.getEpochMinute(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                out.writeDouble(table.getLatitude(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                out.writeDouble(table.getLongitude(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                out.writeByte(table.getSeverity(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                out.writeInt(descriptionIds[row]);
+            }
+        }
+        Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * The table reads its columns straight from the mapped snapshot and has a
+     * dictionary of its own, holding the descriptions of the snapshot. The
+     * mapping lasts until the table is garbage collected.
+     *
+     * @param fingerprint fingerprint of the csv the snapshot must have been
+     * built from, or null to accept a snapshot of any version of the csv
+     * @return the table or null if the snapshot does not match fingerprint
+     */
+    public static PoliceCallTable readPoliceCallSnapshot(File snapshot, Fingerprint fingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+                FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            int rows = readHeader(in, CALL_MAGIC, fingerprint);
+            if (rows < 0) {
+                return null;
+            }
+            long offset = headerBytes();
+            ArrayList<String> descriptions = new ArrayList<>();
+            offset += readStrings(in, descriptions);
+            /* the snapshot numbers its descriptions densely, as a new dictionary does */
+            DescriptionDictionary dictionary = new DescriptionDictionary();
+            for (int id = 0; id < descriptions.size(); id++) {
+                if (dictionary.intern(descriptions.get(id)) != id) {
+                    throw new IOException("description " + descriptions.get(id) + " is repeated");
+                }
+            }
+            LongBuffer recordIds = map(channel, offset, rows * 8L).asLongBuffer();
+            offset += rows * 8L;
+            LongBuffer epochMinutes = map(channel, offset, rows * 8L).asLongBuffer();
+            offset += rows * 8L;
+            DoubleBuffer latitudes = map(channel, offset, rows * 8L).asDoubleBuffer();
+            offset += rows * 8L;
+            DoubleBuffer longitudes = map(channel, offset, rows * 8L).asDoubleBuffer();
+            offset += rows * 8L;
+            ByteBuffer severities = map(channel, offset, rows);
+            offset += rows;
+            IntBuffer descriptionIds = map(channel, offset, rows * 4L).asIntBuffer();
+            return new PoliceCallTable(rows, recordIds, epochMinutes, latitudes, longitudes, severities, descriptionIds, dictionary);
+        }
+    }
+
+    /**
+     * Missing station values are stored as NaN.
+     */
+    public static void writeStationSnapshot(StationReport[] stationReports, File snapshot, Fingerprint fingerprint) throws IOException {
+        int rows = stationReports.length;
+        HashMap<String, Integer> nameIds = new HashMap<>();
+        ArrayList<String> names = new ArrayList<>();
+        for (StationReport stationReport : stationReports) {
+            if (!nameIds.containsKey(stationReport.getStationName())) {
+                nameIds.put(stationReport.getStationName(), names.size());
+                names.add(stationReport.getStationName());
+            }
+        }
+        File temporary = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            writeHeader(out, STATION_MAGIC, fingerprint, rows);
+            writeStrings(out, names);
+            for (StationReport stationReport : stationReports) {
+                out.writeInt(nameIds.get(stationReport.getStationName()));
+            }
+            for (StationReport stationReport : stationReports) {
+                out.writeLong(stationReport.getEpochMinute());
+            }
+            for (StationReport stationReport : stationReports) {
+                out.writeDouble(stationReport.getLatitude());
+            }
+            for (StationReport stationReport : stationReports) {
+                out.writeDouble(stationReport.getLongitude());
+            }
+            for (AVERAGEABLE_STATION_REPORT_FIELD field : AVERAGEABLE_STATION_REPORT_FIELD.values()) {
+                for (StationReport stationReport : stationReports) {
+                    out.writeDouble(stationReport.getValue(field));
+                }
+            }
+        }
+        Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the station reports or null if the snapshot does not match
+     * fingerprint
+     */
+    public static StationReport[] readStationSnapshot(File snapshot, Fingerprint fingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+                FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            int rows = readHeader(in, STATION_MAGIC, fingerprint);
+            if (rows < 0) {
+                return null;
+            }
+            long offset = headerBytes();
+            ArrayList<String> names = new ArrayList<>();
+            offset += readStrings(in, names);
+            int[] nameIds = new int[rows];
+            long[] epochMinutes = new long[rows];
+            map(channel, offset, rows * 4L).asIntBuffer().get(nameIds);
+            offset += rows * 4L;
+            map(channel, offset, rows * 8L).asLongBuffer().get(epochMinutes);
+            offset += rows * 8L;
+            double[] latitudes = new double[rows];
+            double[] longitudes = new double[rows];
+            map(channel, offset, rows * 8L).asDoubleBuffer().get(latitudes);
+            offset += rows * 8L;
+            map(channel, offset, rows * 8L).asDoubleBuffer().get(longitudes);
+            offset += rows * 8L;
+            int fields = AVERAGEABLE_STATION_REPORT_FIELD.values().length;
+            DoubleBuffer[] columns = new DoubleBuffer[fields];
+            for (int field = 0; field < fields; field++) {
+                columns[field] = map(channel, offset, rows * 8L).asDoubleBuffer();
+                offset += rows * 8L;
+            }
+            StationReport[] stationReports = new StationReport[rows];
+            for (int row = 0; row < rows; row++) {
+                double[] values = new double[fields];
+                for (int field = 0; field < fields; field++) {
+                    values[field] = columns[field].get(row);
+                }
+                stationReports[row] = new StationReport(names.get(nameIds[row]), epochMinutes[row], latitudes[row], longitudes[row], values);
+            }
+            return stationReports;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static void writeHeader(DataOutputStream out, int magic, Fingerprint fingerprint, int rows) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(VERSION);
+        out.writeLong(fingerprint.size);
+        out.writeLong(fingerprint.lastModified);
+        out.writeLong(fingerprint.hash);
+        out.writeInt(rows);
+    }
+
+    private static long headerBytes() {
+        return 4 + 4 + 8 + 8 + 8 + 4;
+    }
+
+    /**
+     * @return number of rows or -1 if the header does not match
+     */
+    private static int readHeader(DataInputStream in, int magic, Fingerprint fingerprint) throws IOException {
+        if (in.readInt() != magic || in.readInt() != VERSION) {
+            return -1;
+        }
+        Fingerprint snapshotFingerprint = new Fingerprint(in.readLong(), in.readLong(), in.readLong());
+        int rows = in.readInt();
+        return fingerprint == null || snapshotFingerprint.equals(fingerprint) ? rows : -1;
+    }
+
+    private static void writeStrings(DataOutputStream out, ArrayList<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            byte[] bytes = string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes read
+     */
+    private static long readStrings(DataInputStream in, ArrayList<String> strings) throws IOException {
+        int count = in.readInt();
+        long bytesRead = 4;
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            bytesRead += 4;
+            if (length < 0) {
+                strings.add(null);
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            bytesRead += length;
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Identifies the content of a raw data file.
+     */
+    public static class Fingerprint {
+
+        private final long size;
+        private final long lastModified;
+        private final long hash;
+
+        public Fingerprint(long size, long lastModified, long hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public static Fingerprint of(File file) throws IOException {
+            long size = file.length();
+            CRC32 crc = new CRC32();
+            ByteBuffer sample = ByteBuffer.allocate(HASH_SAMPLE_BYTES);
+            try (FileChannel channel = FileChannel.open(Paths.get(file.getPath()), StandardOpenOption.READ)) {
+                for (int i = 0; i <= HASH_SAMPLES; i++) {
+                    /* sample i = HASH_SAMPLES is the tail of the file */
+                    long position = i == HASH_SAMPLES
+                            ? Math.max(0, size - HASH_SAMPLE_BYTES)
+                            : (size / HASH_SAMPLES) * i;
+                    sample.clear();
+                    channel.read(sample, position);
+                    sample.flip();
+                    crc.update(sample.array(), 0, sample.limit());
+                }
+            }
+            return new Fingerprint(size, file.lastModified(), crc.getValue());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint fingerprint = (Fingerprint) o;
+            return size == fingerprint.size && lastModified == fingerprint.lastModified && hash == fingerprint.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(hash);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package datacollection;
+
+import java.util.Arrays;
+
+/**
+ * Index of the calls of a {@link PoliceCallTable} by latitude, longitude and
+ * time, so that the calls of a neighborhood during a period are found without
+ * scanning the whole table.
+ *
+ * The index is a packed k-d tree: the rows are reordered so that the call
+ * in the middle of every range of the tree splits the rest of the range by
+ * latitude, longitude and time in turn, down to leaves of at most LEAF_SIZE
+ * calls. The tree needs no pointers or bounds, only the reordered
+ * coordinates, and a query only visits the ranges overlapping its box. The
+ * remaining clauses of a query (severity, description) are checked on the
+ * calls found in the box.
+ *
+ * Distances are in kilometers on an equirectangular projection at the
+ * latitude of the query, like {@link StationWeights}.
+ *
+ * @author Benjamin Albert
+ */
+public class SpatialIndex {
+
+    private static final int LEAF_SIZE = 32;
+    private static final int AXES = 3;
+
+    private final PoliceCallTable policeCalls;
+    /* row of the table at every position of the tree, and its coordinates */
+    private final int[] rows;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final long[] epochMinutes;
+
+    public SpatialIndex(PoliceCallTable policeCalls) {
+        this.policeCalls = policeCalls;
+        int size = policeCalls.size();
+        rows = new int[size];
+        latitudes = new double[size];
+        longitudes = new double[size];
+        epochMinutes = new long[size];
+        for (int row = 0; row < size; row++) {
+            rows[row] = row;
+            latitudes[row] = policeCalls.getLatitude(row);
+            longitudes[row] = policeCalls.getLongitude(row);
+            epochMinutes[row] = policeCalls.getEpochMinute(row);
+        }
+        build(0, size, 0);
+    }
+
+    private void build(int from, int to, int axis) {
+        while (to - from > LEAF_SIZE) {
+            int middle = (from + to) >>> 1;
+            select(from, to, middle, axis);
+            build(from, middle, (axis + 1) % AXES);
+            from = middle + 1;
+            axis = (axis + 1) % AXES;
+        }
+    }
+
+    /**
+     * Reorder [from, to) so that position k holds the value it would hold if
+     * the range was sorted along axis, with no greater value before it and no
+     * smaller value after it.
+     */
+    private void select(int from, int to, int k, int axis) {
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            double pivot = coordinate((low + high) >>> 1, axis);
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (coordinate(i, axis) < pivot) {
+                    i++;
+                }
+                while (coordinate(j, axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int position, int axis) {
+        return axis == 0 ? latitudes[position] : axis == 1 ? longitudes[position] : epochMinutes[position];
+    }
+
+    private void swap(int i, int j) {
+        int row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+        double latitude = latitudes[i];
+        latitudes[i] = latitudes[j];
+        latitudes[j] = latitude;
+        double longitude = longitudes[i];
+        longitudes[i] = longitudes[j];
+        longitudes[j] = longitude;
+        long epochMinute = epochMinutes[i];
+        epochMinutes[i] = epochMinutes[j];
+        epochMinutes[j] = epochMinute;
+    }
+
+    /**
+     * @param filter further clauses the calls must pass (null for none)
+     * @return ascending rows of the calls in [minLat, maxLat] x [minLong,
+     * maxLong] reported in [fromMinute, toMinute) that pass filter
+     */
+    public int[] rowsInBox(double minLat, double maxLat, double minLong, double maxLong, long fromMinute, long toMinute, CompiledFilter filter) {
+        Query query = new Query(minLat, maxLat, minLong, maxLong, fromMinute, toMinute, filter);
+        search(query, 0, rows.length, 0);
+        return query.rows();
+    }
+
+    /**
+     * @param radiusKilometers distance from (latitude, longitude)
+     * @param filter further clauses the calls must pass (null for none)
+     * @return ascending rows of the calls within radiusKilometers of
+     * (latitude, longitude) reported in [fromMinute, toMinute) that pass
+     * filter
+     */
+    public int[] rowsWithin(double latitude, double longitude, double radiusKilometers, long fromMinute, long toMinute, CompiledFilter filter) {
+        double kilometersPerDegreeLongitude = StationWeights.KILOMETERS_PER_DEGREE_LONGITUDE_AT_EQUATOR * Math.cos(Math.toRadians(latitude));
+        double latitudeRadius = radiusKilometers / StationWeights.KILOMETERS_PER_DEGREE_LATITUDE;
+        double longitudeRadius = radiusKilometers / kilometersPerDegreeLongitude;
+        Query query = new Query(latitude - latitudeRadius, latitude + latitudeRadius,
+                longitude - longitudeRadius, longitude + longitudeRadius, fromMinute, toMinute, filter);
+        query.circle(latitude, longitude, radiusKilometers, kilometersPerDegreeLongitude);
+        search(query, 0, rows.length, 0);
+        return query.rows();
+    }
+
+    /**
+     * Apply a filter using the index for its coordinate and date bounds.
+     * @return table holding only the rows that pass, like
+     * {@link CompiledFilter#apply(PoliceCallTable)}
+     */
+    public PoliceCallTable apply(CompiledFilter filter) {
+        return select(rowsInBox(filter.getMinLat(), filter.getMaxLat(), filter.getMinLong(), filter.getMaxLong(),
+                filter.getStartMinute(), filter.getEndMinute(), filter));
+    }
+
+    /**
+     * @param rows ascending rows, e.g. the result of a query
+     * @return table of the given rows
+     */
+    public PoliceCallTable select(int[] rows) {
+        return policeCalls.select(rows, rows.length);
+    }
+
+    private void search(Query query, int from, int to, int axis) {
+        while (to - from > LEAF_SIZE) {
+            int middle = (from + to) >>> 1;
+            double split = coordinate(middle, axis);
+            int next = (axis + 1) % AXES;
+            /* [from, middle) is not greater than split and (middle, to) not smaller */
+            boolean left = query.lowerBound(axis) <= split;
+            boolean right = query.upperBound(axis) >= split;
+            if (left && right) {
+                query.test(middle);
+                search(query, from, middle, next);
+                from = middle + 1;
+            } else if (left) {
+                to = middle;
+            } else if (right) {
+                from = middle + 1;
+            } else {
+                return;
+            }
+            axis = next;
+        }
+        for (int position = from; position < to; position++) {
+            query.test(position);
+        }
+    }
+
+    private class Query {
+
+        private final double minLat;
+        private final double maxLat;
+        private final double minLong;
+        private final double maxLong;
+        private final long fromMinute;
+        private final long toMinute;
+        private final CompiledFilter filter;
+        private boolean circle;
+        private double latitude;
+        private double longitude;
+        private double radiusKilometers;
+        private double kilometersPerDegreeLongitude;
+        private int[] matches;
+        private int size;
+
+        Query(double minLat, double maxLat, double minLong, double maxLong, long fromMinute, long toMinute, CompiledFilter filter) {
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLong = minLong;
+            this.maxLong = maxLong;
+            this.fromMinute = fromMinute;
+            this.toMinute = toMinute;
+            this.filter = filter;
+            this.matches = new int[LEAF_SIZE];
+        }
+
+        void circle(double latitude, double longitude, double radiusKilometers, double kilometersPerDegreeLongitude) {
+            this.circle = true;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusKilometers = radiusKilometers;
+            this.kilometersPerDegreeLongitude = kilometersPerDegreeLongitude;
+        }
+
+        double lowerBound(int axis) {
+            return axis == 0 ? minLat : axis == 1 ? minLong : fromMinute;
+        }
+
+        /* toMinute is excluded, so a split at toMinute leaves only the lower side */
+        double upperBound(int axis) {
+            return axis == 0 ? maxLat : axis == 1 ? maxLong : toMinute - 0.5;
+        }
+
+        void test(int position) {
+            double callLatitude = latitudes[position];
+            double callLongitude = longitudes[position];
+            long epochMinute = epochMinutes[position];
+            if (callLatitude < minLat || callLatitude > maxLat || callLongitude < minLong || callLongitude > maxLong
+                    || epochMinute < fromMinute || epochMinute >= toMinute) {
+                return;
+            }
+            if (circle) {
+                double dy = (callLatitude - latitude) * StationWeights.KILOMETERS_PER_DEGREE_LATITUDE;
+                double dx = (callLongitude - longitude) * kilometersPerDegreeLongitude;
+                if (dx * dx + dy * dy > radiusKilometers * radiusKilometers) {
+                    return;
+                }
+            }
+            int row = rows[position];
+            if (filter != null && !filter.pass(policeCalls, row)) {
+                return;
+            }
+            if (size == matches.length) {
+                matches = Arrays.copyOf(matches, size * 2);
+            }
+            matches[size++] = row;
+        }
+
+        int[] rows() {
+            int[] sorted = Arrays.copyOf(matches, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
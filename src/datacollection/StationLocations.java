@@ -0,0 +1,69 @@
+package datacollection;
+
+import java.util.Arrays;
+
+/**
+ * Names and coordinates of a fixed list of weather stations, e.g. the
+ * reporting stations of a {@link WeatherAggregator}. A station is located at
+ * its first report; stations that never reported have NaN coordinates.
+ *
+ * @author Benjamin Albert
+ */
+public class StationLocations {
+
+    private final String[] names;
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    public StationLocations(String[] names) {
+        this.names = names.clone();
+        this.latitudes = new double[names.length];
+        this.longitudes = new double[names.length];
+        Arrays.fill(latitudes, Double.NaN);
+        Arrays.fill(longitudes, Double.NaN);
+    }
+
+    public StationLocations(String[] names, double[] latitudes, double[] longitudes) {
+        this.names = names.clone();
+        this.latitudes = latitudes.clone();
+        this.longitudes = longitudes.clone();
+    }
+
+    /**
+     * Locate station unless it is located already.
+     */
+    void locate(int station, double latitude, double longitude) {
+        if (Double.isNaN(latitudes[station])) {
+            latitudes[station] = latitude;
+            longitudes[station] = longitude;
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int station) {
+        return names[station];
+    }
+
+    /**
+     * @return index of the station or -1 if it is not in the list
+     */
+    public int indexOf(String name) {
+        for (int station = 0; station < names.length; station++) {
+            if (names[station].equals(name)) {
+                return station;
+            }
+        }
+        return -1;
+    }
+
+    public double getLatitude(int station) {
+        return latitudes[station];
+    }
+
+    public double getLongitude(int station) {
+        return longitudes[station];
+    }
+}
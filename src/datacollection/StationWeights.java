@@ -0,0 +1,134 @@
+package datacollection;
+
+import datacollection.WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD;
+
+/**
+ * Inverse distance weights from weather stations to the cells of a grid, so
+ * that every cell gets its own weather.
+ *
+ * The weights only depend on the grid geometry and the station locations, so
+ * they are computed once into a dense cells x stations matrix. Interpolating
+ * one field of one window is then a matrix-vector product with the station
+ * averages of the window. Stations without a value in the window are left
+ * out and the remaining weights of each cell renormalized.
+ *
+ * Distances are in kilometers on an equirectangular projection, which is
+ * accurate at city scale.
+ *
+ * @author Benjamin Albert
+ */
+public class StationWeights {
+
+    public static final double DEFAULT_POWER = 2;
+
+    static final double KILOMETERS_PER_DEGREE_LATITUDE = 110.574;
+    static final double KILOMETERS_PER_DEGREE_LONGITUDE_AT_EQUATOR = 111.320;
+
+    private final double minLat;
+    private final double maxLat;
+    private final double minLong;
+    private final double maxLong;
+    private final int rows;
+    private final int cols;
+    private final StationLocations stations;
+    /* weights[cell * stations + station], cell = row * cols + col */
+    private final double[] weights;
+
+    /**
+     * @param grid geometry of the cells (bounds and number of rows and
+     * columns), row 0 being the northernmost
+     * @param stations located stations, stations without a location get no
+     * weight
+     * @param power exponent of the inverse distance
+     */
+    public StationWeights(Grid grid, StationLocations stations, double power) {
+        this.minLat = grid.getMinLat();
+        this.maxLat = grid.getMaxLat();
+        this.minLong = grid.getMinLong();
+        this.maxLong = grid.getMaxLong();
+        this.rows = grid.getrBins();
+        this.cols = grid.getcBins();
+        this.stations = stations;
+        int stationCount = stations.size();
+        this.weights = new double[rows * cols * stationCount];
+        double latInc = (maxLat - minLat) / rows;
+        double longInc = (maxLong - minLong) / cols;
+        double kilometersPerDegreeLongitude = KILOMETERS_PER_DEGREE_LONGITUDE_AT_EQUATOR
+                * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        for (int row = 0; row < rows; row++) {
+            double latitude = maxLat - (row + 0.5) * latInc;
+            for (int col = 0; col < cols; col++) {
+                double longitude = minLong + (col + 0.5) * longInc;
+                int offset = (row * cols + col) * stationCount;
+                for (int station = 0; station < stationCount; station++) {
+                    if (Double.isNaN(stations.getLatitude(station))) {
+                        continue;
+                    }
+                    double dy = (stations.getLatitude(station) - latitude) * KILOMETERS_PER_DEGREE_LATITUDE;
+                    double dx = (stations.getLongitude(station) - longitude) * kilometersPerDegreeLongitude;
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    /* a station at the center of a cell would get an infinite weight */
+                    weights[offset + station] = 1 / Math.pow(Math.max(distance, 1e-6), power);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if these weights were computed for the geometry of grid
+     */
+    public boolean matches(Grid grid) {
+        return minLat == grid.getMinLat() && maxLat == grid.getMaxLat()
+                && minLong == grid.getMinLong() && maxLong == grid.getMaxLong()
+                && rows == grid.getrBins() && cols == grid.getcBins();
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * @param report report made by a WeatherAggregator over the stations of
+     * these weights
+     * @return field of every cell indexed by row * cols + col, NaN where no
+     * station has a value
+     */
+    public double[] interpolate(WeatherReport report, AVERAGEABLE_STATION_REPORT_FIELD field) {
+        if (report.getStationLocations() == null || report.getStationLocations().size() != stations.size()) {
+            throw new IllegalArgumentException("report does not hold the values of " + stations.size() + " stations");
+        }
+        int stationCount = stations.size();
+        double[] stationValues = new double[stationCount];
+        for (int station = 0; station < stationCount; station++) {
+            stationValues[station] = report.getStationValue(station, field);
+        }
+        return interpolate(stationValues);
+    }
+
+    /**
+     * @param stationValues value of every station, NaN if missing
+     * @return interpolated value of every cell indexed by row * cols + col
+     */
+    public double[] interpolate(double[] stationValues) {
+        int stationCount = stations.size();
+        double[] cells = new double[rows * cols];
+        for (int cell = 0; cell < cells.length; cell++) {
+            int offset = cell * stationCount;
+            double weightedSum = 0;
+            double weightSum = 0;
+            for (int station = 0; station < stationCount; station++) {
+                double value = stationValues[station];
+                if (!Double.isNaN(value)) {
+                    weightedSum += weights[offset + station] * value;
+                    weightSum += weights[offset + station];
+                }
+            }
+            cells[cell] = weightSum > 0 ? weightedSum / weightSum : Double.NaN;
+        }
+        return cells;
+    }
+}
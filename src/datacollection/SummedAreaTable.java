@@ -0,0 +1,117 @@
+package datacollection;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Prefix sums of a {@link CountCube} over windows, rows and columns, one
+ * table per severity, so that the calls of a severity in any block of
+ * windows x rows x columns are counted with eight lookups, e.g. the high
+ * severity calls of a sub-rectangle of the grid during a week.
+ *
+ * Entry (w, r, c) of a table is the number of calls in windows [0, w), rows
+ * [0, r) and columns [0, c), so every table has one more entry than the cube
+ * along each axis.
+ *
+ * @author Benjamin Albert
+ */
+public class SummedAreaTable {
+
+    private final int windows;
+    private final int rows;
+    private final int cols;
+    private final long[] startEpochMinutes;
+    /* sums[severity][(window * (rows + 1) + row) * (cols + 1) + col] */
+    private final int[][] sums;
+
+    public SummedAreaTable(CountCube cube) {
+        this.windows = cube.size();
+        this.rows = cube.getRows();
+        this.cols = cube.getCols();
+        this.startEpochMinutes = new long[windows];
+        for (int window = 0; window < windows; window++) {
+            startEpochMinutes[window] = cube.getStartEpochMinute(window);
+        }
+        int plane = (rows + 1) * (cols + 1);
+        if ((long) (windows + 1) * plane > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(windows + " windows of " + rows + "x" + cols + " do not fit in a table");
+        }
+        this.sums = new int[Grid.SEVERITIES][(windows + 1) * plane];
+        for (int window = 0; window < windows; window++) {
+            IntBuffer counts = cube.getWindow(window);
+            int previous = window * plane;
+            int current = previous + plane;
+            for (int severity = 0; severity < Grid.SEVERITIES; severity++) {
+                int[] table = sums[severity];
+                for (int row = 0; row < rows; row++) {
+                    /* calls of the row up to the column */
+                    int rowSum = 0;
+                    for (int col = 0; col < cols; col++) {
+                        rowSum += counts.get((row * cols + col) * Grid.SEVERITIES + severity);
+                        int entry = (row + 1) * (cols + 1) + col + 1;
+                        table[current + entry] = table[previous + entry] + table[current + entry - (cols + 1)] + rowSum
+                                - table[previous + entry - (cols + 1)];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return calls of the severity in windows [fromWindow, toWindow), rows
+     * [fromRow, toRow) and columns [fromCol, toCol)
+     */
+    public int count(int fromWindow, int toWindow, int fromRow, int toRow, int fromCol, int toCol, int severity) {
+        if (fromWindow < 0 || toWindow > windows || fromRow < 0 || toRow > rows || fromCol < 0 || toCol > cols) {
+            throw new IndexOutOfBoundsException("windows [" + fromWindow + ", " + toWindow + ") rows [" + fromRow + ", "
+                    + toRow + ") columns [" + fromCol + ", " + toCol + ") of " + windows + "x" + rows + "x" + cols);
+        }
+        if (fromWindow >= toWindow || fromRow >= toRow || fromCol >= toCol) {
+            return 0;
+        }
+        int[] table = sums[severity];
+        return table[entry(toWindow, toRow, toCol)] - table[entry(fromWindow, toRow, toCol)]
+                - table[entry(toWindow, fromRow, toCol)] - table[entry(toWindow, toRow, fromCol)]
+                + table[entry(fromWindow, fromRow, toCol)] + table[entry(fromWindow, toRow, fromCol)]
+                + table[entry(toWindow, fromRow, fromCol)] - table[entry(fromWindow, fromRow, fromCol)];
+    }
+
+    /**
+     * @return calls of every severity in windows [fromWindow, toWindow), rows
+     * [fromRow, toRow) and columns [fromCol, toCol)
+     */
+    public int count(int fromWindow, int toWindow, int fromRow, int toRow, int fromCol, int toCol) {
+        int count = 0;
+        for (int severity = 0; severity < Grid.SEVERITIES; severity++) {
+            count += count(fromWindow, toWindow, fromRow, toRow, fromCol, toCol, severity);
+        }
+        return count;
+    }
+
+    /**
+     * @param epochMinute minutes since the epoch
+     * @return the first window starting at or after epochMinute, so that
+     * windows [firstWindow(from), firstWindow(to)) are those starting in
+     * [from, to)
+     */
+    public int firstWindow(long epochMinute) {
+        int window = Arrays.binarySearch(startEpochMinutes, epochMinute);
+        return window >= 0 ? window : -window - 1;
+    }
+
+    private int entry(int window, int row, int col) {
+        return (window * (rows + 1) + row) * (cols + 1) + col;
+    }
+
+    public int getWindows() {
+        return windows;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+}
@@ -0,0 +1,194 @@
+package datacollection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Hand-rolled parser for the two fixed timestamp layouts of the raw data:
+ * <ul>
+ * <li>911 calls: MM/dd/yyyy hh:mm:ss a (e.g. 07/04/2018 09:15:00 PM)</li>
+ * <li>weather stations: yyyy-MM-dd HH:mm (e.g. 2018-07-04 21:15)</li>
+ * </ul>
+ *
+ * Timestamps are returned as epoch minutes: minutes since 1970-01-01T00:00
+ * with seconds truncated (the 911 call seconds are always 00). The epoch day
+ * of recently seen dates is cached, so the many records that share a date skip
+ * the calendar math. Anything that does not fit the layout exactly falls back
+ * to the equivalent {@link DateTimeFormatter}.
+ *
+ * Instances keep state between calls and must not be shared across threads.
+ *
+ * @author Benjamin Albert
+ */
+public class TimestampParser {
+
+    public static final DateTimeFormatter CALL_DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("MM/dd/yyyy hh:mm:ss a");
+    public static final DateTimeFormatter STATION_DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    public static final long MINUTES_PER_HOUR = 60;
+    public static final long MINUTES_PER_DAY = 24 * MINUTES_PER_HOUR;
+
+    private static final int CACHE_SIZE = 64;
+
+    private final int[] cachedDates;
+    private final long[] cachedEpochDays;
+    private int year;
+    private int month;
+    private int day;
+    private int hour;
+    private int minute;
+    private int second;
+    private long epochDay;
+
+    public TimestampParser() {
+        cachedDates = new int[CACHE_SIZE];
+        cachedEpochDays = new long[CACHE_SIZE];
+    }
+
+    /**
+     * @param buffer holding a 911 call timestamp in [start, end)
+     * @return epoch minute
+     */
+    public long parseCallDateTime(ByteBuffer buffer, int start, int end) {
+        if (end - start == 22
+                && buffer.get(start + 2) == '/' && buffer.get(start + 5) == '/' && buffer.get(start + 10) == ' '
+                && buffer.get(start + 13) == ':' && buffer.get(start + 16) == ':' && buffer.get(start + 19) == ' '
+                && buffer.get(start + 21) == 'M') {
+            int parsedMonth = digits(buffer, start, 2);
+            int parsedDay = digits(buffer, start + 3, 2);
+            int parsedYear = digits(buffer, start + 6, 4);
+            int clockHour = digits(buffer, start + 11, 2);
+            int parsedMinute = digits(buffer, start + 14, 2);
+            int parsedSecond = digits(buffer, start + 17, 2);
+            byte meridiem = buffer.get(start + 20);
+            if (clockHour >= 1 && clockHour <= 12 && (meridiem == 'A' || meridiem == 'P')) {
+                int parsedHour = clockHour % 12 + (meridiem == 'P' ? 12 : 0);
+                if (set(parsedYear, parsedMonth, parsedDay, parsedHour, parsedMinute, parsedSecond) && resolveEpochDay()) {
+                    return epochMinute();
+                }
+            }
+        }
+        return fallback(buffer, start, end, CALL_DATE_TIME_FORMATTER);
+    }
+
+    /**
+     * @param buffer holding a weather station timestamp in [start, end)
+     * @return epoch minute
+     */
+    public long parseStationDateTime(ByteBuffer buffer, int start, int end) {
+        if (end - start == 16
+                && buffer.get(start + 4) == '-' && buffer.get(start + 7) == '-' && buffer.get(start + 10) == ' '
+                && buffer.get(start + 13) == ':') {
+            int parsedYear = digits(buffer, start, 4);
+            int parsedMonth = digits(buffer, start + 5, 2);
+            int parsedDay = digits(buffer, start + 8, 2);
+            int parsedHour = digits(buffer, start + 11, 2);
+            int parsedMinute = digits(buffer, start + 14, 2);
+            if (set(parsedYear, parsedMonth, parsedDay, parsedHour, parsedMinute, 0) && resolveEpochDay()) {
+                return epochMinute();
+            }
+        }
+        return fallback(buffer, start, end, STATION_DATE_TIME_FORMATTER);
+    }
+
+    /**
+     * @return the last parsed timestamp, including seconds
+     */
+    public LocalDateTime toLocalDateTime() {
+        return LocalDateTime.of(year, month, day, hour, minute, second);
+    }
+
+    public static long toEpochMinute(LocalDateTime datetime) {
+        return Math.floorDiv(datetime.toEpochSecond(ZoneOffset.UTC), 60);
+    }
+
+    /**
+     * @return the first epoch minute that is not before datetime
+     */
+    public static long toEpochMinuteCeiling(LocalDateTime datetime) {
+        long seconds = datetime.toEpochSecond(ZoneOffset.UTC);
+        return Math.floorDiv(seconds, 60) + (seconds % 60 != 0 || datetime.getNano() != 0 ? 1 : 0);
+    }
+
+    public static LocalDateTime toLocalDateTime(long epochMinute) {
+        return LocalDateTime.ofEpochSecond(epochMinute * 60, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * @return the epoch minute of midnight on the day of epochMinute
+     */
+    public static long startOfDay(long epochMinute) {
+        return Math.floorDiv(epochMinute, MINUTES_PER_DAY) * MINUTES_PER_DAY;
+    }
+
+    /**
+     * @return the two or four digit number at offset or -1 if it holds a non
+     * digit
+     */
+    private static int digits(ByteBuffer buffer, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private boolean set(int year, int month, int day, int hour, int minute, int second) {
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return false;
+        }
+        this.year = year;
+        this.month = month;
+        this.day = day;
+        this.hour = hour;
+        this.minute = minute;
+        this.second = second;
+        return true;
+    }
+
+    private long epochMinute() {
+        return epochDay * MINUTES_PER_DAY + hour * MINUTES_PER_HOUR + minute;
+    }
+
+    /**
+     * @return false for dates such as 02/30, which are left to the formatter
+     */
+    private boolean resolveEpochDay() {
+        int date = (year * 100 + month) * 100 + day;
+        int slot = (date ^ (date >>> 7)) & (CACHE_SIZE - 1);
+        if (cachedDates[slot] != date) {
+            if (day > YearMonth.of(year, month).lengthOfMonth()) {
+                return false;
+            }
+            cachedEpochDays[slot] = LocalDate.of(year, month, day).toEpochDay();
+            cachedDates[slot] = date;
+        }
+        epochDay = cachedEpochDays[slot];
+        return true;
+    }
+
+    private long fallback(ByteBuffer buffer, int start, int end, DateTimeFormatter formatter) {
+        byte[] bytes = new byte[Math.max(0, end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        LocalDateTime datetime = LocalDateTime.parse(new String(bytes, StandardCharsets.ISO_8859_1), formatter);
+        year = datetime.getYear();
+        month = datetime.getMonthValue();
+        day = datetime.getDayOfMonth();
+        hour = datetime.getHour();
+        minute = datetime.getMinute();
+        second = datetime.getSecond();
+        return toEpochMinute(datetime);
+    }
+}
@@ -0,0 +1,127 @@
+package datacollection;
+
+import com.google.gson.Gson;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Marks how much of the raw crime data has been ingested: the largest record
+ * id and date and time seen and the number of bytes of the csv that were
+ * read. Persisted as json next to the data. The date and time is where the
+ * next download of new calls starts, see {@link IncrementalIngester#cutoff()}.
+ *
+ * The dataset only grows by appending rows, so the bytes up to byteOffset are
+ * expected to stay the same between downloads. boundaryHash covers the first
+ * block of the file and the block ending at byteOffset so that a rewritten
+ * file can be told apart from an appended one without reading all of it.
+ *
+ * @author Benjamin Albert
+ */
+public class Watermark {
+
+    private static final int HASH_BLOCK_BYTES = 1 << 16;
+
+    private long recordId;
+    private long epochMinute;
+    private long byteOffset;
+    private long boundaryHash;
+
+    public Watermark() {
+        recordId = -1;
+        epochMinute = Long.MIN_VALUE;
+    }
+
+    /**
+     * @param table every call ingested so far
+     * @param crimeDataFile the csv the table was read from
+     * @return watermark covering the whole of crimeDataFile
+     */
+    public static Watermark of(PoliceCallTable table, String crimeDataFile) throws IOException {
+        Watermark watermark = of(table);
+        watermark.byteOffset = new File(crimeDataFile).length();
+        watermark.boundaryHash = boundaryHash(crimeDataFile, watermark.byteOffset);
+        return watermark;
+    }
+
+    /**
+     * @param table every call ingested so far, not read from a csv
+     * @return watermark covering none of any csv, so that a csv is read whole
+     */
+    public static Watermark of(PoliceCallTable table) {
+        Watermark watermark = new Watermark();
+        watermark.recordId = table.maxRecordId();
+        watermark.epochMinute = table.size() == 0 ? Long.MIN_VALUE : table.getEpochMinute(table.size() - 1);
+        return watermark;
+    }
+
+    /**
+     * @return the watermark stored in watermarkFile or null if there is none
+     */
+    public static Watermark read(String watermarkFile) throws IOException {
+        File file = new File(watermarkFile);
+        if (!file.exists()) {
+            return null;
+        }
+        return new Gson().fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), Watermark.class);
+    }
+
+    public void write(String watermarkFile) throws IOException {
+        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(watermarkFile));
+        bufferedWriter.write(new Gson().toJson(this));
+        bufferedWriter.flush();
+        bufferedWriter.close();
+    }
+
+    /**
+     * @return true if crimeDataFile still starts with the bytes this watermark
+     * was taken over, i.e. rows have only been appended since
+     */
+    public boolean isPrefixOf(String crimeDataFile) throws IOException {
+        File file = new File(crimeDataFile);
+        return file.length() >= byteOffset && boundaryHash(crimeDataFile, byteOffset) == boundaryHash;
+    }
+
+    private static long boundaryHash(String crimeDataFile, long byteOffset) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer block = ByteBuffer.allocate(HASH_BLOCK_BYTES);
+        try (FileChannel channel = FileChannel.open(Paths.get(crimeDataFile), StandardOpenOption.READ)) {
+            long[] positions = {0, Math.max(0, byteOffset - HASH_BLOCK_BYTES)};
+            for (long position : positions) {
+                block.clear();
+                block.limit((int) Math.min(HASH_BLOCK_BYTES, Math.max(0, byteOffset - position)));
+                int read;
+                do {
+                    read = channel.read(block, position + block.position());
+                } while (read > 0 && block.hasRemaining());
+                block.flip();
+                crc.update(block.array(), 0, block.limit());
+            }
+        }
+        return crc.getValue();
+    }
+
+    public long getRecordId() {
+        return recordId;
+    }
+
+    /**
+     * @return date and time of the latest call ingested, Long.MIN_VALUE if
+     * there is none
+     */
+    public long getEpochMinute() {
+        return epochMinute;
+    }
+
+    public long getByteOffset() {
+        return byteOffset;
+    }
+}
@@ -0,0 +1,239 @@
+package datacollection;
+
+import datacollection.WeatherReport.StationReport;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Aggregates station reports into weather reports for several interval
+ * lengths at once (e.g. 1, 3, 6 and 24 hours) in a single pass over the
+ * reports sorted by date and time.
+ *
+ * Every interval length keeps a running sum and count per station and field
+ * for its current window, so no report is stored or scanned twice. A window
+ * ends when the first report past it arrives. Each field of a window is the
+ * average of the first station in orderedStationPreferences that reported the
+ * field within the window, or missing if none did. The average of every
+ * station that reports at all is kept in the window as well (see
+ * {@link WeatherReport#getStationValue(int, WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD)}),
+ * together with the {@link StationLocations} of those stations: the preferred
+ * stations first, then the others in the order of their first report, so
+ * that per-cell weather is interpolated from every station.
+ *
+ * Windows without any report are handled by an {@link EMPTY_WINDOW_POLICY}.
+ *
+ * @author Benjamin Albert
+ */
+public class WeatherAggregator {
+
+    public static enum EMPTY_WINDOW_POLICY {
+        /* empty windows are left out */
+        SKIP,
+        /* empty windows are emitted with every value missing */
+        MISSING,
+        /* empty windows are emitted with the values of the previous window */
+        CARRY_FORWARD
+    }
+
+    private static final int FIELDS = WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD.values().length;
+    private static final long NO_WINDOW = Long.MIN_VALUE;
+
+    private final long[] minutesBetweenReports;
+    private final boolean startIntervalsAtMidnight;
+    private final String[] orderedStationPreferences;
+    private final EMPTY_WINDOW_POLICY emptyWindowPolicy;
+
+    /**
+     * @param hoursBetweenReports interval lengths, each a factor of 24
+     * @param startIntervalsAtMidnight if true, windows start at midnight of
+     * the first report, otherwise at the first report
+     * @param orderedStationPreferences stations the values of a window are
+     * taken from, most preferred first; every other station that reports is
+     * still averaged into the per-station values
+     * @param emptyWindowPolicy what to do with windows without reports
+     */
+    public WeatherAggregator(long[] hoursBetweenReports, boolean startIntervalsAtMidnight, String[] orderedStationPreferences, EMPTY_WINDOW_POLICY emptyWindowPolicy) {
+        this.minutesBetweenReports = new long[hoursBetweenReports.length];
+        for (int i = 0; i < hoursBetweenReports.length; i++) {
+            if (hoursBetweenReports[i] <= 0 || 24 % hoursBetweenReports[i] != 0) {
+                throw new IllegalArgumentException("hoursBetweenReports (" + hoursBetweenReports[i] + ") must be a factor of 24");
+            }
+            this.minutesBetweenReports[i] = hoursBetweenReports[i] * TimestampParser.MINUTES_PER_HOUR;
+        }
+        this.startIntervalsAtMidnight = startIntervalsAtMidnight;
+        this.orderedStationPreferences = orderedStationPreferences.clone();
+        this.emptyWindowPolicy = emptyWindowPolicy;
+    }
+
+    /**
+     * @param stationReports sorted by date and time in place (stable)
+     * @return for every interval length, in the order given to the
+     * constructor, its weather reports sorted by date and time
+     */
+    public WeatherReport[][] aggregate(StationReport[] stationReports) {
+        Collections.sort(Arrays.asList(stationReports), StationReport.DATE_TIME_COMPARATOR);
+        int intervals = minutesBetweenReports.length;
+        HashMap<String, Integer> stationIndices = new HashMap<>();
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : orderedStationPreferences) {
+            if (!stationIndices.containsKey(name)) {
+                stationIndices.put(name, names.size());
+                names.add(name);
+            }
+        }
+        String lastName = null;
+        for (StationReport stationReport : stationReports) {
+            /* reports of a station usually share one name instance */
+            if (stationReport.getStationName() != lastName) {
+                lastName = stationReport.getStationName();
+                if (!stationIndices.containsKey(lastName)) {
+                    stationIndices.put(lastName, names.size());
+                    names.add(lastName);
+                }
+            }
+        }
+        StationLocations locations = new StationLocations(names.toArray(new String[0]));
+        int preferred = Math.min(orderedStationPreferences.length, names.size());
+        long origin = stationReports.length == 0 ? 0 : stationReports[0].getEpochMinute();
+        if (startIntervalsAtMidnight) {
+            origin = TimestampParser.startOfDay(origin);
+        }
+        Window[] windows = new Window[intervals];
+        for (int i = 0; i < intervals; i++) {
+            windows[i] = new Window(minutesBetweenReports[i], origin, locations, preferred);
+        }
+        lastName = null;
+        int station = -1;
+        for (StationReport stationReport : stationReports) {
+            if (stationReport.getStationName() != lastName) {
+                lastName = stationReport.getStationName();
+                station = stationIndices.get(lastName);
+            }
+            locations.locate(station, stationReport.getLatitude(), stationReport.getLongitude());
+            long minutesFromOrigin = stationReport.getEpochMinute() - origin;
+            for (Window window : windows) {
+                window.moveTo(Math.floorDiv(minutesFromOrigin, window.minutes));
+                window.add(station, stationReport);
+            }
+        }
+        for (Window window : windows) {
+            window.close();
+        }
+        WeatherReport[][] weatherReports = new WeatherReport[intervals][];
+        for (int i = 0; i < intervals; i++) {
+            weatherReports[i] = windows[i].reports.toArray(new WeatherReport[0]);
+        }
+        return weatherReports;
+    }
+
+    /**
+     * Accumulators of the current window of one interval length.
+     */
+    private class Window {
+
+        private final long minutes;
+        private final long origin;
+        private final StationLocations locations;
+        /* the values of a window come from stations [0, preferred) */
+        private final int preferred;
+        private final double[][] sums;
+        private final int[][] counts;
+        private final ArrayList<WeatherReport> reports;
+        private long index;
+        private int reportCount;
+        private double[] previousValues;
+        private double[] previousStationValues;
+
+        Window(long minutes, long origin, StationLocations locations, int preferred) {
+            int stations = locations.size();
+            this.minutes = minutes;
+            this.origin = origin;
+            this.locations = locations;
+            this.preferred = preferred;
+            this.sums = new double[stations][FIELDS];
+            this.counts = new int[stations][FIELDS];
+            this.reports = new ArrayList<>();
+            this.index = NO_WINDOW;
+        }
+
+        void moveTo(long newIndex) {
+            if (newIndex == index) {
+                return;
+            }
+            if (index != NO_WINDOW) {
+                close();
+                if (emptyWindowPolicy != EMPTY_WINDOW_POLICY.SKIP) {
+                    for (long empty = index + 1; empty < newIndex; empty++) {
+                        if (emptyWindowPolicy == EMPTY_WINDOW_POLICY.CARRY_FORWARD) {
+                            emit(empty, previousValues.clone(), previousStationValues.clone());
+                        } else {
+                            emit(empty, missing(FIELDS), missing(sums.length * FIELDS));
+                        }
+                    }
+                }
+            }
+            index = newIndex;
+        }
+
+        void add(int station, StationReport stationReport) {
+            reportCount++;
+            double[] stationSums = sums[station];
+            int[] stationCounts = counts[station];
+            for (int field = 0; field < FIELDS; field++) {
+                double value = stationReport.getValue(field);
+                if (!Double.isNaN(value)) {
+                    stationSums[field] += value;
+                    stationCounts[field]++;
+                }
+            }
+        }
+
+        /**
+         * Emit the current window if it holds any report and reset the
+         * accumulators.
+         */
+        void close() {
+            if (reportCount == 0) {
+                return;
+            }
+            double[] stationValues = missing(sums.length * FIELDS);
+            for (int station = 0; station < sums.length; station++) {
+                for (int field = 0; field < FIELDS; field++) {
+                    if (counts[station][field] > 0) {
+                        stationValues[station * FIELDS + field] = sums[station][field] / counts[station][field];
+                    }
+                }
+            }
+            double[] values = missing(FIELDS);
+            for (int field = 0; field < FIELDS; field++) {
+                for (int station = 0; station < preferred; station++) {
+                    if (counts[station][field] > 0) {
+                        values[field] = stationValues[station * FIELDS + field];
+                        break;
+                    }
+                }
+            }
+            emit(index, values, stationValues);
+            for (int station = 0; station < sums.length; station++) {
+                Arrays.fill(sums[station], 0);
+                Arrays.fill(counts[station], 0);
+            }
+            reportCount = 0;
+        }
+
+        private void emit(long windowIndex, double[] values, double[] stationValues) {
+            long start = origin + windowIndex * minutes;
+            reports.add(new WeatherReport(start, start + minutes, values, locations, stationValues));
+            previousValues = values;
+            previousStationValues = stationValues;
+        }
+
+        private double[] missing(int length) {
+            double[] values = new double[length];
+            Arrays.fill(values, Double.NaN);
+            return values;
+        }
+    }
+}
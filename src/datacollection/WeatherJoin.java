@@ -0,0 +1,130 @@
+package datacollection;
+
+import datacollection.WeatherReport.AVERAGEABLE_STATION_REPORT_FIELD;
+import datacollection.WeatherReport.StationReport;
+import java.util.Arrays;
+
+/**
+ * As-of join of station observations onto individual police calls.
+ *
+ * Each call gets, for every field, the latest value reported at or before the
+ * call by the first station in orderedStationPreferences that has one no
+ * older than maxStalenessMinutes. A station whose latest report is missing a
+ * field still provides the field from its latest report that has it.
+ *
+ * The observations of every preferred station are kept as epoch sorted
+ * primitive arrays, and the calls of a {@link PoliceCallTable} are already
+ * sorted by time, so the join is a single merge: one cursor per station only
+ * ever moves forward.
+ *
+ * @author Benjamin Albert
+ */
+public class WeatherJoin {
+
+    private static final int FIELDS = AVERAGEABLE_STATION_REPORT_FIELD.values().length;
+
+    private final String[] orderedStationPreferences;
+    private final long maxStalenessMinutes;
+    /* per preferred station: observation times and values[field][observation] */
+    private final long[][] epochMinutes;
+    private final double[][][] values;
+
+    /**
+     * @param stationReports observations of any stations in any order
+     * @param orderedStationPreferences stations to use, most preferred first
+     * @param maxStalenessMinutes observations older than this (relative to a
+     * call) are not used
+     */
+    public WeatherJoin(StationReport[] stationReports, String[] orderedStationPreferences, long maxStalenessMinutes) {
+        this.orderedStationPreferences = orderedStationPreferences.clone();
+        this.maxStalenessMinutes = maxStalenessMinutes;
+        int stations = orderedStationPreferences.length;
+        StationReport[] sorted = stationReports.clone();
+        Arrays.sort(sorted, StationReport.DATE_TIME_COMPARATOR);
+        int[] sizes = new int[stations];
+        for (StationReport stationReport : sorted) {
+            int station = stationIndex(stationReport.getStationName());
+            if (station >= 0) {
+                sizes[station]++;
+            }
+        }
+        epochMinutes = new long[stations][];
+        values = new double[stations][FIELDS][];
+        for (int station = 0; station < stations; station++) {
+            epochMinutes[station] = new long[sizes[station]];
+            for (int field = 0; field < FIELDS; field++) {
+                values[station][field] = new double[sizes[station]];
+            }
+            sizes[station] = 0;
+        }
+        for (StationReport stationReport : sorted) {
+            int station = stationIndex(stationReport.getStationName());
+            if (station < 0) {
+                continue;
+            }
+            int observation = sizes[station]++;
+            epochMinutes[station][observation] = stationReport.getEpochMinute();
+            for (int field = 0; field < FIELDS; field++) {
+                values[station][field][observation] = stationReport.getValue(field);
+            }
+        }
+    }
+
+    private int stationIndex(String stationName) {
+        for (int station = 0; station < orderedStationPreferences.length; station++) {
+            if (orderedStationPreferences[station].equals(stationName)) {
+                return station;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param policeCalls calls sorted by date and time
+     * @return weather of every call indexed by [field ordinal][row], NaN if no
+     * preferred station has a recent enough value
+     */
+    public double[][] join(PoliceCallTable policeCalls) {
+        int stations = orderedStationPreferences.length;
+        int rows = policeCalls.size();
+        double[][] joined = new double[FIELDS][rows];
+        int[] cursors = new int[stations];
+        /* latest value of each field per station up to the current call */
+        double[][] latestValues = new double[stations][FIELDS];
+        long[][] latestMinutes = new long[stations][FIELDS];
+        for (int station = 0; station < stations; station++) {
+            Arrays.fill(latestValues[station], Double.NaN);
+        }
+        for (int row = 0; row < rows; row++) {
+            long callMinute = policeCalls.getEpochMinute(row);
+            for (int station = 0; station < stations; station++) {
+                long[] observationMinutes = epochMinutes[station];
+                double[][] observationValues = values[station];
+                int cursor = cursors[station];
+                while (cursor < observationMinutes.length && observationMinutes[cursor] <= callMinute) {
+                    for (int field = 0; field < FIELDS; field++) {
+                        double value = observationValues[field][cursor];
+                        if (!Double.isNaN(value)) {
+                            latestValues[station][field] = value;
+                            latestMinutes[station][field] = observationMinutes[cursor];
+                        }
+                    }
+                    cursor++;
+                }
+                cursors[station] = cursor;
+            }
+            for (int field = 0; field < FIELDS; field++) {
+                double value = Double.NaN;
+                for (int station = 0; station < stations; station++) {
+                    if (!Double.isNaN(latestValues[station][field])
+                            && callMinute - latestMinutes[station][field] <= maxStalenessMinutes) {
+                        value = latestValues[station][field];
+                        break;
+                    }
+                }
+                joined[field][row] = value;
+            }
+        }
+        return joined;
+    }
+}
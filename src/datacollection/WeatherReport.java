@@ -1,33 +1,40 @@
 package datacollection;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 
 /**
+ * Weather values are primitive doubles indexed by
+ * {@link AVERAGEABLE_STATION_REPORT_FIELD} ordinal, where NaN stands for a
+ * missing value.
+ *
  * @author Benjamin Albert
  */
 public class WeatherReport {
 
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final AVERAGEABLE_STATION_REPORT_FIELD[] FIELDS = AVERAGEABLE_STATION_REPORT_FIELD.values();
 
     private HashMap<String, ArrayList<StationReport>> stationReports;
     private LocalDateTime startDateTime;
     private LocalDateTime endDateTime;
-    private Double fahrenheit;
-    private Double relativeHumidity;
-    private Double perceivedFahrenheit;
-    private Double hourlyPrecipitationInches;
+    /* startDateTime and endDateTime as epoch minutes, see TimestampParser */
+    private long startEpochMinute;
+    private long endEpochMinute;
+    private final double[] values;
+    /* set by WeatherAggregator: the averages of every reporting station */
+    private final StationLocations stationLocations;
+    private final double[] stationValues;
 
     public static enum AVERAGEABLE_STATION_REPORT_FIELD {
         FAHRENHEIT("fahrenheit"),
@@ -43,6 +50,9 @@ public class WeatherReport {
     }
 
     public WeatherReport(ArrayList<StationReport> stationReports) {
+        this.values = missingValues();
+        this.stationLocations = null;
+        this.stationValues = null;
         this.stationReports = new HashMap<>();
         for (StationReport stationReport : stationReports) {
             if (!this.stationReports.keySet().contains(stationReport.stationName)) {
@@ -52,104 +62,83 @@ public class WeatherReport {
         }
     }
 
-    public void fillNull(String... stationNames) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException {
-        if (this.fahrenheit == null) {
-            this.fahrenheit = averageStationReportValue(AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT, stationNames);
-        }
-        if (this.relativeHumidity == null) {
-            this.relativeHumidity = averageStationReportValue(AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY, stationNames);
-        }
-        if (this.perceivedFahrenheit == null) {
-            this.perceivedFahrenheit = averageStationReportValue(AVERAGEABLE_STATION_REPORT_FIELD.PERCEIVED_FAHRENHEIT, stationNames);
-        }
-        if (this.hourlyPrecipitationInches == null) {
-            this.hourlyPrecipitationInches = averageStationReportValue(AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES, stationNames);
-        }
-    }
-
-    private Double averageStationReportValue(AVERAGEABLE_STATION_REPORT_FIELD averageableStationReportField) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException {
-        return averageStationReportValue(averageableStationReportField, stationReports.keySet().toArray(new String[0]));
+    /**
+     * @param values values indexed by AVERAGEABLE_STATION_REPORT_FIELD ordinal,
+     * NaN if missing
+     * @param stationValues average of every station of stationLocations,
+     * indexed by station * (number of fields) + field ordinal, NaN if missing
+     */
+    WeatherReport(long startEpochMinute, long endEpochMinute, double[] values, StationLocations stationLocations, double[] stationValues) {
+        this.values = values;
+        this.stationLocations = stationLocations;
+        this.stationValues = stationValues;
+        setStartEpochMinute(startEpochMinute);
+        setEndEpochMinute(endEpochMinute);
     }
 
-    private Double averageStationReportValue(AVERAGEABLE_STATION_REPORT_FIELD averageableStationReportField, String... stationNames) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException {
-        if (this.stationReports == null || this.stationReports.isEmpty()) {
-            return null;
+    /**
+     * Fill every missing value with the average of the reports of the given
+     * stations, reading all fields in a single pass over the reports.
+     */
+    public void fillNull(String... stationNames) {
+        if (this.stationReports == null || this.stationReports.isEmpty() || !hasMissingValue()) {
+            return;
         }
-        double total = 0;
-        int reports = 0;
-        Field stationReportField = StationReport.class.getDeclaredField(averageableStationReportField.fieldName);
+        double[] totals = new double[FIELDS.length];
+        int[] reports = new int[FIELDS.length];
         for (String stationName : stationNames) {
-            if (this.stationReports.get(stationName) == null) {
+            ArrayList<StationReport> reportsOfStation = this.stationReports.get(stationName);
+            if (reportsOfStation == null) {
                 continue;
             }
-            for (StationReport stationReport : this.stationReports.get(stationName)) {
-                if (Modifier.isPrivate(stationReportField.getModifiers())) {
-                    stationReportField.setAccessible(true);
-                }
-                Object fieldValue = stationReportField.get(stationReport);
-                if (fieldValue != null && (fieldValue instanceof Double || fieldValue instanceof Integer)) {
-                    reports++;
-                    if (fieldValue instanceof Double) {
-                        total += ((Double) fieldValue);
-                    } else if (fieldValue instanceof Integer) {
-                        total += ((Integer) fieldValue);
+            for (StationReport stationReport : reportsOfStation) {
+                for (int field = 0; field < FIELDS.length; field++) {
+                    double value = stationReport.values[field];
+                    if (!Double.isNaN(value)) {
+                        totals[field] += value;
+                        reports[field]++;
                     }
                 }
             }
         }
-        if (reports == 0){
-            return null;
+        for (int field = 0; field < FIELDS.length; field++) {
+            if (Double.isNaN(values[field]) && reports[field] > 0) {
+                values[field] = totals[field] / reports[field];
+            }
         }
-        return total / reports;
     }
 
-    public static WeatherReport[] generateWeatherReports(StationReport[] stationReports, long hoursBetweenReports, boolean startIntervalsAtMidnight, String[] orderedStationPreferences) {
-        if (24.0 % hoursBetweenReports != 0) {
-            System.err.println("reportsPerDay (" + hoursBetweenReports + ") must be a factor of 24");
-        }
-        Collections.sort(Arrays.asList(stationReports), StationReport.DATE_TIME_COMPARATOR);
-        LocalDateTime intervalBeginning = stationReports[0].datetime;
-        /* if we do not start from the first station report, intervals start at midnight */
-        if (startIntervalsAtMidnight) {
-            intervalBeginning = LocalDateTime.of(intervalBeginning.getYear(), intervalBeginning.getMonth(), intervalBeginning.getDayOfMonth(), 0, 0);
-        }
-        LocalDateTime intervalEnding = intervalBeginning.plusHours(hoursBetweenReports);
-        ArrayList<WeatherReport> weatherReports = new ArrayList<>();
-        ArrayList<StationReport> currentStationReports = new ArrayList<>();
-        for (StationReport stationReport : stationReports) {
-            /* if stationReport is within the time interval */
-            if (stationReport.datetime.isEqual(intervalBeginning) || (stationReport.datetime.isAfter(intervalBeginning) && stationReport.datetime.isBefore(intervalEnding))) {
-                currentStationReports.add(stationReport);
-            } else {
-                if (!currentStationReports.isEmpty()) {
-                    WeatherReport weatherReport = new WeatherReport(currentStationReports);
-                    weatherReport.startDateTime = LocalDateTime.of(
-                            intervalBeginning.getYear(),
-                            intervalBeginning.getMonth(),
-                            intervalBeginning.getDayOfMonth(),
-                            intervalBeginning.getHour(),
-                            intervalBeginning.getMinute());
-                    weatherReport.endDateTime = LocalDateTime.of(
-                            intervalEnding.getYear(),
-                            intervalEnding.getMonth(),
-                            intervalEnding.getDayOfMonth(),
-                            intervalEnding.getHour(),
-                            intervalEnding.getMinute());
-                    try {
-                        for (String stationName : orderedStationPreferences) {
-                            weatherReport.fillNull(stationName);
-                        }
-                        weatherReports.add(weatherReport);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    currentStationReports.clear();
-                }
-                intervalBeginning = intervalEnding;
-                intervalEnding = intervalBeginning.plusHours(hoursBetweenReports);
+    private boolean hasMissingValue() {
+        for (double value : values) {
+            if (Double.isNaN(value)) {
+                return true;
             }
         }
-        return weatherReports.toArray(new WeatherReport[0]);
+        return false;
+    }
+
+    private static double[] missingValues() {
+        double[] values = new double[FIELDS.length];
+        Arrays.fill(values, Double.NaN);
+        return values;
+    }
+
+    private static Double boxed(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static double unboxed(Double value) {
+        return value == null ? Double.NaN : value;
+    }
+
+    /**
+     * @param hoursBetweenReports length of each report, a factor of 24
+     * @return reports of every non-empty interval, see
+     * {@link WeatherAggregator}
+     */
+    public static WeatherReport[] generateWeatherReports(StationReport[] stationReports, long hoursBetweenReports, boolean startIntervalsAtMidnight, String[] orderedStationPreferences) {
+        return new WeatherAggregator(new long[]{hoursBetweenReports}, startIntervalsAtMidnight, orderedStationPreferences,
+                WeatherAggregator.EMPTY_WINDOW_POLICY.SKIP).aggregate(stationReports)[0];
     }
 
     public HashMap<String, ArrayList<StationReport>> getStationReports() {
@@ -166,6 +155,16 @@ public class WeatherReport {
 
     public void setStartDateTime(LocalDateTime startDateTime) {
         this.startDateTime = startDateTime;
+        this.startEpochMinute = TimestampParser.toEpochMinute(startDateTime);
+    }
+
+    public long getStartEpochMinute() {
+        return startEpochMinute;
+    }
+
+    public void setStartEpochMinute(long startEpochMinute) {
+        this.startEpochMinute = startEpochMinute;
+        this.startDateTime = TimestampParser.toLocalDateTime(startEpochMinute);
     }
 
     public LocalDateTime getEndDateTime() {
@@ -174,120 +173,255 @@ public class WeatherReport {
 
     public void setEndDateTime(LocalDateTime endDateTime) {
         this.endDateTime = endDateTime;
+        this.endEpochMinute = TimestampParser.toEpochMinute(endDateTime);
+    }
+
+    public long getEndEpochMinute() {
+        return endEpochMinute;
+    }
+
+    public void setEndEpochMinute(long endEpochMinute) {
+        this.endEpochMinute = endEpochMinute;
+        this.endDateTime = TimestampParser.toLocalDateTime(endEpochMinute);
+    }
+
+    /**
+     * @return the value of field or NaN if it is missing
+     */
+    public double getValue(AVERAGEABLE_STATION_REPORT_FIELD field) {
+        return values[field.ordinal()];
+    }
+
+    /**
+     * @return the stations of {@link #getStationValue(int, AVERAGEABLE_STATION_REPORT_FIELD)}
+     * or null if this report was not made by a WeatherAggregator
+     */
+    public StationLocations getStationLocations() {
+        return stationLocations;
+    }
+
+    /**
+     * @param station index in getStationLocations()
+     * @return average of field over the reports of station in this interval
+     * or NaN if it has none
+     */
+    public double getStationValue(int station, AVERAGEABLE_STATION_REPORT_FIELD field) {
+        return stationValues[station * FIELDS.length + field.ordinal()];
     }
 
     public Double getFahrenheit() {
-        return fahrenheit;
+        return boxed(values[AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT.ordinal()]);
     }
 
     public void setFahrenheit(Double fahrenheit) {
-        this.fahrenheit = fahrenheit;
+        values[AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT.ordinal()] = unboxed(fahrenheit);
     }
 
     public Double getRelativeHumidity() {
-        return relativeHumidity;
+        return boxed(values[AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY.ordinal()]);
     }
 
     public void setRelativeHumidity(Double relativeHumidity) {
-        this.relativeHumidity = relativeHumidity;
+        values[AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY.ordinal()] = unboxed(relativeHumidity);
     }
 
     public Double getPerceivedFahrenheit() {
-        return perceivedFahrenheit;
+        return boxed(values[AVERAGEABLE_STATION_REPORT_FIELD.PERCEIVED_FAHRENHEIT.ordinal()]);
     }
 
     public void setPerceivedFahrenheit(Double perceivedFahrenheit) {
-        this.perceivedFahrenheit = perceivedFahrenheit;
+        values[AVERAGEABLE_STATION_REPORT_FIELD.PERCEIVED_FAHRENHEIT.ordinal()] = unboxed(perceivedFahrenheit);
     }
 
     public Double getHourlyPrecipitationInches() {
-        return hourlyPrecipitationInches;
+        return boxed(values[AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES.ordinal()]);
     }
 
     public void setHourlyPrecipitationInches(Double hourlyPrecipitationInches) {
-        this.hourlyPrecipitationInches = hourlyPrecipitationInches;
+        values[AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES.ordinal()] = unboxed(hourlyPrecipitationInches);
     }
 
     public static class StationReport {
 
-        public static final Comparator<StationReport> DATE_TIME_COMPARATOR = (StationReport p1, StationReport p2) -> p1.datetime.compareTo(p2.datetime);
+        private static final byte[] MISSING = "null".getBytes(StandardCharsets.US_ASCII);
+
+        public static final Comparator<StationReport> DATE_TIME_COMPARATOR = (StationReport p1, StationReport p2) -> Long.compare(p1.epochMinute, p2.epochMinute);
 
         private final String stationName;
         private final LocalDateTime datetime;
-        private final Double latitude;
-        private final Double longitude;
-        private final Double fahrenheit;
-        private Double relativeHumidity;
-        /* accounts for wind chill and heat index factors */
-        private Double perceivedFahrenheit;
-        private Double hourlyPrecipitationInches;
+        private final long epochMinute;
+        private final double latitude;
+        private final double longitude;
+        /* indexed by AVERAGEABLE_STATION_REPORT_FIELD ordinal, NaN if missing;
+         * perceived fahrenheit accounts for wind chill and heat index factors */
+        private final double[] values;
 
         public StationReport(String csv) throws Exception {
-            String[] tokens = csv.split(",");
-            stationName = tokens[0];
-            datetime = LocalDateTime.parse(tokens[1], DATE_TIME_FORMATTER);
-            longitude = Double.valueOf(tokens[2]);
-            latitude = Double.valueOf(tokens[3]);
-            fahrenheit = Double.valueOf(tokens[4]);
-            try {
-                relativeHumidity = Double.valueOf(tokens[5]);
-            } catch (NumberFormatException e) {
+            this(tokenize(csv));
+        }
+
+        private StationReport(CSVTokenizer tokenizer) throws Exception {
+            this(tokenizer, new TimestampParser(), tokenizer.string(0));
+        }
+
+        /**
+         * @param values values indexed by AVERAGEABLE_STATION_REPORT_FIELD
+         * ordinal, NaN if missing
+         */
+        StationReport(String stationName, long epochMinute, double latitude, double longitude, double[] values) {
+            this.stationName = stationName;
+            this.epochMinute = epochMinute;
+            this.datetime = TimestampParser.toLocalDateTime(epochMinute);
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.values = values;
+        }
+
+        private static CSVTokenizer tokenize(String csv) {
+            byte[] bytes = csv.getBytes();
+            CSVTokenizer tokenizer = new CSVTokenizer();
+            tokenizer.tokenize(ByteBuffer.wrap(bytes), 0, bytes.length);
+            return tokenizer;
+        }
+
+        /**
+         * @param tokenizer holding a tokenized line of the weather csv
+         * @param timestamps parser for the datetime field
+         * @param stationName name of the station in the first field
+         * @throws Exception if the line is not a complete station report
+         */
+        StationReport(CSVTokenizer tokenizer, TimestampParser timestamps, String stationName) throws Exception {
+            if (tokenizer.fields() < 8) {
+                throw new ArrayIndexOutOfBoundsException(tokenizer.fields());
             }
-            try {
-                perceivedFahrenheit = Double.valueOf(tokens[6]);
-            } catch (NumberFormatException e) {
+            this.stationName = stationName;
+            epochMinute = timestamps.parseStationDateTime(tokenizer.buffer(), tokenizer.start(1), tokenizer.end(1));
+            datetime = timestamps.toLocalDateTime();
+            longitude = tokenizer.parseDouble(2);
+            latitude = tokenizer.parseDouble(3);
+            values = new double[FIELDS.length];
+            values[AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT.ordinal()] = tokenizer.parseDouble(4);
+            values[AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY.ordinal()] = parseOptional(tokenizer, 5);
+            values[AVERAGEABLE_STATION_REPORT_FIELD.PERCEIVED_FAHRENHEIT.ordinal()] = parseOptional(tokenizer, 6);
+            values[AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES.ordinal()] = parseOptional(tokenizer, 7);
+        }
+
+        /**
+         * @return the value of field or NaN if it is missing
+         */
+        private static double parseOptional(CSVTokenizer tokenizer, int field) {
+            if (tokenizer.equals(field, MISSING)) {
+                return Double.NaN;
             }
             try {
-                hourlyPrecipitationInches = Double.valueOf(tokens[7]);
+                return tokenizer.parseDouble(field);
             } catch (NumberFormatException e) {
+                return Double.NaN;
             }
         }
 
         public static StationReport[] readStationReports(String weatherDataFile) throws FileNotFoundException, IOException {
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(weatherDataFile));
-            boolean skipLine = true;
-            String line;
             ArrayList<StationReport> stationReports = new ArrayList<>();
-            while ((line = bufferedReader.readLine()) != null) {
-                if (skipLine) {
-                    skipLine = false;
-                    continue;
-                }
-                try {
-                    stationReports.add(new StationReport(line));
-                } catch (Exception e) {
+            try (FileChannel channel = FileChannel.open(Paths.get(weatherDataFile), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                CSVTokenizer tokenizer = new CSVTokenizer();
+                TimestampParser timestamps = new TimestampParser();
+                /* station names are few, so each is decoded once and reused */
+                ArrayList<byte[]> nameBytes = new ArrayList<>();
+                ArrayList<String> names = new ArrayList<>();
+                int length = buffer.limit();
+                /* skip the header */
+                int lineStart = CSVTokenizer.lineEnd(buffer, 0, length) + 1;
+                while (lineStart < length) {
+                    int lineEnd = CSVTokenizer.lineEnd(buffer, lineStart, length);
+                    tokenizer.tokenize(buffer, lineStart, CSVTokenizer.trimCarriageReturn(buffer, lineStart, lineEnd));
+                    lineStart = lineEnd + 1;
+                    int name = 0;
+                    while (name < nameBytes.size() && !tokenizer.equals(0, nameBytes.get(name))) {
+                        name++;
+                    }
+                    if (name == names.size()) {
+                        String stationName = tokenizer.string(0);
+                        names.add(stationName);
+                        nameBytes.add(stationName.getBytes());
+                    }
+                    try {
+                        stationReports.add(new StationReport(tokenizer, timestamps, names.get(name)));
+                    } catch (Exception e) {
+                    }
                 }
             }
             return stationReports.toArray(new StationReport[0]);
         }
 
-        public Double getRelativeHumidity() {
-            return relativeHumidity;
+        public String getStationName() {
+            return stationName;
+        }
+
+        public double getLatitude() {
+            return latitude;
         }
 
-        public void setRelativeHumidity(Double relativeHumidity) {
-            this.relativeHumidity = relativeHumidity;
+        public double getLongitude() {
+            return longitude;
         }
 
-        public Double getPerceivedFahrenheit() {
-            return perceivedFahrenheit;
+        /**
+         * @return the value of field or NaN if it is missing
+         */
+        public double getValue(AVERAGEABLE_STATION_REPORT_FIELD field) {
+            return values[field.ordinal()];
         }
 
-        public void setPerceivedFahrenheit(Double perceivedFahrenheit) {
-            this.perceivedFahrenheit = perceivedFahrenheit;
+        /**
+         * @param field AVERAGEABLE_STATION_REPORT_FIELD ordinal
+         */
+        double getValue(int field) {
+            return values[field];
         }
 
-        public Double getHourlyPrecipitationInches() {
-            return hourlyPrecipitationInches;
+        public void setValue(AVERAGEABLE_STATION_REPORT_FIELD field, double value) {
+            values[field.ordinal()] = value;
         }
 
-        public void setHourlyPrecipitationInches(Double hourlyPrecipitationInches) {
-            this.hourlyPrecipitationInches = hourlyPrecipitationInches;
+        public double getFahrenheit() {
+            return values[AVERAGEABLE_STATION_REPORT_FIELD.FAHRENHEIT.ordinal()];
+        }
+
+        public double getRelativeHumidity() {
+            return values[AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY.ordinal()];
+        }
+
+        public void setRelativeHumidity(double relativeHumidity) {
+            values[AVERAGEABLE_STATION_REPORT_FIELD.RELATIVE_HUMIDITY.ordinal()] = relativeHumidity;
+        }
+
+        public double getPerceivedFahrenheit() {
+            return values[AVERAGEABLE_STATION_REPORT_FIELD.PERCEIVED_FAHRENHEIT.ordinal()];
+        }
+
+        public void setPerceivedFahrenheit(double perceivedFahrenheit) {
+            values[AVERAGEABLE_STATION_REPORT_FIELD.PERCEIVED_FAHRENHEIT.ordinal()] = perceivedFahrenheit;
+        }
+
+        public double getHourlyPrecipitationInches() {
+            return values[AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES.ordinal()];
+        }
+
+        public void setHourlyPrecipitationInches(double hourlyPrecipitationInches) {
+            values[AVERAGEABLE_STATION_REPORT_FIELD.HOURLY_PRECIPITATION_INCHES.ordinal()] = hourlyPrecipitationInches;
         }
 
         public LocalDateTime getDatetime() {
             return datetime;
         }
 
+        /**
+         * @return datetime as minutes since 1970-01-01T00:00
+         */
+        public long getEpochMinute() {
+            return epochMinute;
+        }
+
     }
 }